@@ -8,6 +8,9 @@
  */
 package co.paralleluniverse.capsule;
 
+import co.paralleluniverse.common.ZipIndex;
+import co.paralleluniverse.common.ZipWriter;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -15,12 +18,16 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -28,16 +35,35 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.jar.Pack200;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -47,15 +73,35 @@ import java.util.zip.ZipException;
 
 /**
  * A JAR file that can be easily modified.
+ * Unless an output is set with {@link #setOutputStream(OutputStream) setOutputStream}, the JAR is written, as entries are added,
+ * to an internal buffer, which is moved to a temporary file once the JAR grows beyond a few megabytes, so that building the JAR takes
+ * a bounded amount of memory regardless of its size. The JAR is therefore not streamed to its destination as it's built (unless the
+ * destination is given up front with {@link #setOutput(Path) setOutput}), but copied there when {@link #write(OutputStream) written},
+ * and it can be written any number of times. Once a large JAR is written to a file, its temporary file is deleted, and later writes copy
+ * that file instead. Otherwise, the temporary file is deleted by {@link #release() release}, or when the JVM exits.
  * This class is not thread-safe.
  */
 public class Jar {
     private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF"; // java.util.jar.JarFile.MANIFEST_NAME
     private static final String ATTR_MANIFEST_VERSION = "Manifest-Version";
+    private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_PARALLEL_ENTRY_SIZE = 1024 * 1024; // larger entries are deflated as they're written
+    private static final String[] COMPRESSED_EXTENSIONS = {".jar", ".war", ".zip", ".gz", ".tgz"};
+    private static final long WORKER_IDLE_TIMEOUT = 1000; // ms; idle workers exit, so that an abandoned JAR doesn't keep them
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<>(); // a worker's deflater, ended when the worker exits
     private OutputStream os;
     private final Manifest manifest;
     private final JarInputStream jis;
-    private JarOutputStream jos;
+    private ZipWriter zip;
+    private int parallelism;
+    private ExecutorService executor;
+    private Deflater deflater;
+    private final Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+    private final Set<String> names = new HashSet<>();
+    private boolean startupLayout;
+    private Set<String> launchClasses;
+    private Buffer deferred;
+    private final List<CompressedEntry> deferredEntries = new ArrayList<>();
     private Pack200.Packer packer;
     private String jarPrefixStr;
     private Path jarPrefixFile;
@@ -134,7 +180,7 @@ public class Jar {
      */
     public final Jar setAttribute(String name, String value) {
         verifyNotSealed();
-        if (jos != null)
+        if (isWriting())
             throw new IllegalStateException("Manifest cannot be modified after entries are added.");
         getManifest().getMainAttributes().putValue(name, value);
         return this;
@@ -151,7 +197,7 @@ public class Jar {
      */
     public final Jar setAttribute(String section, String name, String value) {
         verifyNotSealed();
-        if (jos != null)
+        if (isWriting())
             throw new IllegalStateException("Manifest cannot be modified after entries are added.");
         Attributes attr = getManifest().getAttributes(section);
         if (attr == null) {
@@ -294,7 +340,7 @@ public class Jar {
      */
     public Jar addEntry(String path, InputStream is) throws IOException {
         beginWriting();
-        addEntry(jos, path, is);
+        putEntry(path, is, true);
         return this;
     }
 
@@ -307,7 +353,7 @@ public class Jar {
      */
     public Jar addEntry(String path, byte[] content) throws IOException {
         beginWriting();
-        addEntry(jos, path, content);
+        putEntry(path, content);
         return this;
     }
 
@@ -383,6 +429,8 @@ public class Jar {
 
     /**
      * Adds a directory (with all its subdirectories) or the contents of a zip/JAR to this JAR.
+     * The entries of a zip/JAR are selected by the names in its central directory, and their compressed data is copied as it is
+     * (with its CRC and sizes), unless the file can't be read this way (e.g. a ZIP64 file), in which case it is read as a stream.
      *
      * @param path     the path within the JAR where the root of the directory will be placed, or {@code null} for the JAR's root
      * @param dirOrZip the directory to add as an entry or a zip/JAR file whose contents will be extracted and added as entries
@@ -392,7 +440,7 @@ public class Jar {
     public Jar addEntries(Path path, Path dirOrZip, Filter filter) throws IOException {
         if (Files.isDirectory(dirOrZip))
             addDir(path, dirOrZip, filter, true);
-        else {
+        else if (!addZipEntries(path, dirOrZip, filter)) {
             try (JarInputStream jis1 = newJarInputStream(Files.newInputStream(dirOrZip))) {
                 addEntries(path, jis1, filter);
             }
@@ -461,7 +509,7 @@ public class Jar {
                 if (target.equals(MANIFEST_NAME))
                     continue;
                 if (filter == null || filter.filter(target))
-                    addEntryNoClose(jos, target, zis);
+                    putEntry(target, zis, false);
             }
         }
         return this;
@@ -501,7 +549,7 @@ public class Jar {
                             try {
                                 if (entry.getName().startsWith(path + '/')) {
                                     if (filter == null || filter.filter(entry.getName()))
-                                        addEntryNoClose(jos, entry.getName(), jis1);
+                                        putEntry(entry.getName(), jis1, false);
                                 }
                             } catch (ZipException e) {
                                 if (!e.getMessage().startsWith("duplicate entry"))
@@ -539,23 +587,368 @@ public class Jar {
         });
     }
 
-    private static void addEntry(JarOutputStream jarOut, String path, InputStream is) throws IOException {
-        jarOut.putNextEntry(new JarEntry(path));
-        copy(is, jarOut);
-        jarOut.closeEntry();
+    private void putEntry(String path, InputStream is, boolean close) throws IOException {
+        try {
+            submitEntry(path, is);
+        } catch (Throwable t) {
+            stopExecutor();
+            throw t;
+        } finally {
+            if (close)
+                is.close();
+        }
+    }
+
+    private void putEntry(String path, byte[] data) throws IOException {
+        try {
+            submitEntry(path, data, data.length);
+        } catch (Throwable t) {
+            stopExecutor();
+            throw t;
+        }
+    }
+
+    /**
+     * Adds the entries of a ZIP file by copying their compressed data as it is, rather than decompressing and compressing it again.
+     * Entries are selected by their names in the ZIP's central directory.
+     *
+     * @return {@code false} if the ZIP can't be copied this way (e.g. it has no usable central directory), in which case nothing is added
+     */
+    private boolean addZipEntries(Path path, Path zipFile, Filter filter) throws IOException {
+        beginWriting();
+        try (SeekableByteChannel ch = Files.newByteChannel(zipFile)) {
+            final ZipIndex index = ZipIndex.read(ch, false);
+            if (index == null)
+                return false;
+
+            final Map<String, long[]> entries = new LinkedHashMap<>();
+            for (String name : index.names()) {
+                if (name.equalsIgnoreCase("META-INF/") || name.equalsIgnoreCase(MANIFEST_NAME))
+                    continue; // skipped by JarInputStream
+                final String target = path != null ? path.resolve(name).toString() : name;
+                if (target.equals(MANIFEST_NAME) || (filter != null && !filter.filter(target)))
+                    continue;
+                final long[] entry = index.get(name);
+                if (entry[ZipIndex.METHOD] != ZipEntry.STORED && entry[ZipIndex.METHOD] != ZipEntry.DEFLATED)
+                    return false;
+                entries.put(target, entry);
+            }
+
+            final InputStream in = Channels.newInputStream(ch);
+            for (Map.Entry<String, long[]> e : entries.entrySet()) {
+                final String target = e.getKey();
+                final long[] entry = e.getValue();
+                ch.position(ZipIndex.getDataOffset(ch, entry));
+                if (startupLayout && isCompressed(target) && entry[ZipIndex.METHOD] == ZipEntry.DEFLATED) {
+                    final Inflater inflater = new Inflater(true);
+                    try {
+                        submitEntry(target, new InflaterInputStream(in, inflater));
+                    } finally {
+                        inflater.end();
+                    }
+                } else
+                    submitRawEntry(target, (int) entry[ZipIndex.METHOD], entry[ZipIndex.CRC], entry[ZipIndex.SIZE], entry[ZipIndex.COMPRESSED_SIZE], in);
+            }
+        } catch (Throwable t) {
+            stopExecutor();
+            throw t;
+        }
+        return true;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Compression Pipeline">
+    /////////// Compression Pipeline ///////////////////////////////////
+    /*
+     * Entries are read on the caller's thread
+     * (in the order they're added), and deflated by the worker pool, if there is one. They're written in the order they were added,
+     * as soon as all preceding entries have been written, and the caller blocks when too many are pending.
+     * Entries larger than MAX_PARALLEL_ENTRY_SIZE are deflated on the caller's thread, as they're written, after all pending ones, and
+     * entries copied from a ZIP file are written, as they are, after all pending ones.
+     * In the startup layout, entries other than the manifest and the classes used to launch the capsule are written, in order, to
+     * a separate buffer, which is appended to the JAR when it's closed.
+     */
+    private void submitEntry(String path, InputStream is) throws IOException {
+        if (startupLayout && isCompressed(path)) {
+            addName(path);
+            writePending(0);
+            deferEntry(path, System.currentTimeMillis(), ZipEntry.STORED, is);
+            return;
+        }
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int n; content.size() <= MAX_PARALLEL_ENTRY_SIZE && (n = is.read(buffer)) >= 0;)
+            content.write(buffer, 0, n);
+
+        if (content.size() <= MAX_PARALLEL_ENTRY_SIZE)
+            submitEntry(path, content.toByteArray(), content.size());
+        else {
+            addName(path);
+            writePending(0);
+            final long time = System.currentTimeMillis();
+            final InputStream all = new SequenceInputStream(new ByteArrayInputStream(content.toByteArray()), is);
+            if (isDeferred(path))
+                deferEntry(path, time, ZipEntry.DEFLATED, all);
+            else
+                zip.writeEntry(path, time, all, getDeflater());
+        }
+    }
+
+    private void submitRawEntry(String path, int method, long crc, long size, long compressedSize, InputStream data) throws IOException {
+        addName(path);
+        writePending(0);
+        final long time = System.currentTimeMillis();
+        if (isDeferred(path)) {
+            final byte[] buffer = new byte[8192];
+            for (long remaining = compressedSize; remaining > 0;) {
+                final int n = data.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+                if (n < 0)
+                    throw new ZipException("Unexpected end of data for entry " + path);
+                deferred.write(buffer, 0, n);
+                remaining -= n;
+            }
+            deferredEntries.add(new CompressedEntry(path, method, time, crc, size, null, compressedSize));
+        } else
+            zip.writeEntry(path, method, time, crc, size, compressedSize, data);
+    }
+
+    private void submitEntry(final String path, final byte[] data, final int length) throws IOException {
+        addName(path);
+        final long time = System.currentTimeMillis();
+        if (startupLayout && isCompressed(path)) {
+            writePending(0);
+            deferEntry(path, time, ZipEntry.STORED, new ByteArrayInputStream(data, 0, length));
+        } else if (parallelism <= 1) {
+            writePending(0);
+            writeEntry(deflate(path, time, data, length, getDeflater()));
+        } else {
+            if (executor == null)
+                executor = newExecutor();
+            pending.add(executor.submit(new Callable<CompressedEntry>() {
+                @Override
+                public CompressedEntry call() {
+                    return deflate(path, time, data, length, getWorkerDeflater());
+                }
+            }));
+            writePending(2 * parallelism);
+        }
+    }
+
+    /*
+     * The pool is started when the first entry is submitted to it, and its idle workers exit. If adding an entry fails, it's shut down
+     * (it's started again if more entries are added); the entries already submitted are still compressed, and written if the JAR is closed.
+     */
+    private ExecutorService newExecutor() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, WORKER_IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    r.run();
+                                } finally {
+                                    final Deflater deflater = DEFLATER.get();
+                                    if (deflater != null) {
+                                        DEFLATER.remove();
+                                        deflater.end();
+                                    }
+                                }
+                            }
+                        }, "jar-compressor-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static Deflater getWorkerDeflater() {
+        Deflater deflater = DEFLATER.get();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            DEFLATER.set(deflater);
+        }
+        return deflater;
+    }
+
+    private void stopExecutor() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private void addName(String path) throws ZipException {
+        if (!names.add(path))
+            throw new ZipException("duplicate entry: " + path);
+    }
+
+    /**
+     * Writes all deflated entries at the head of the queue, waiting for them if more than {@code maxPending} are queued.
+     */
+    private void writePending(int maxPending) throws IOException {
+        while (!pending.isEmpty() && (pending.size() > maxPending || pending.peek().isDone())) {
+            final CompressedEntry entry;
+            try {
+                entry = pending.poll().get();
+            } catch (ExecutionException e) {
+                throw new IOException("Exception while compressing JAR entry", e.getCause());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            writeEntry(entry);
+        }
+    }
+
+    private void writeEntry(CompressedEntry entry) throws IOException {
+        if (isDeferred(entry.name)) {
+            deferred.write(entry.data, 0, (int) entry.length);
+            deferredEntries.add(new CompressedEntry(entry.name, entry.method, entry.time, entry.crc, entry.size, null, entry.length));
+        } else
+            zip.writeEntry(entry.name, entry.method, entry.time, entry.crc, entry.size, entry.data, 0, (int) entry.length);
+    }
+
+    /**
+     * Writes an entry, stored or deflated, to the deferred buffer.
+     */
+    private void deferEntry(String path, long time, int method, InputStream is) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] in = new byte[8192];
+        long size = 0;
+        long compressedSize = 0;
+        if (method == ZipEntry.STORED) {
+            for (int n; (n = is.read(in)) >= 0;) {
+                crc.update(in, 0, n);
+                deferred.write(in, 0, n);
+                size += n;
+            }
+            compressedSize = size;
+        } else {
+            final Deflater deflater = getDeflater();
+            final byte[] out = new byte[8192];
+            try {
+                for (int n; (n = is.read(in)) >= 0;) {
+                    crc.update(in, 0, n);
+                    deflater.setInput(in, 0, n);
+                    while (!deflater.needsInput())
+                        deferred.write(out, 0, deflater.deflate(out));
+                }
+                deflater.finish();
+                while (!deflater.finished())
+                    deferred.write(out, 0, deflater.deflate(out));
+                size = deflater.getBytesRead();
+                compressedSize = deflater.getBytesWritten();
+            } finally {
+                deflater.reset();
+            }
+        }
+        deferredEntries.add(new CompressedEntry(path, method, time, crc.getValue(), size, null, compressedSize));
+    }
+
+    private void writeDeferred() throws IOException {
+        if (deferred == null)
+            return;
+        deferred.close();
+        try (InputStream is = deferred.getInputStream()) {
+            for (CompressedEntry entry : deferredEntries)
+                zip.writeEntry(entry.name, entry.method, entry.time, entry.crc, entry.size, entry.length, is);
+        }
+        deferred.release();
+    }
+
+    private boolean isDeferred(String path) {
+        return startupLayout && !launchClasses.contains(getClassName(path));
+    }
+
+    private static boolean isCompressed(String path) {
+        final String name = path.toLowerCase(Locale.ENGLISH);
+        for (String ext : COMPRESSED_EXTENSIONS) {
+            if (name.endsWith(ext))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The names of the classes that are loaded when the capsule is launched: Capsule, the main and agent classes, and the caplets
+     * (other than those given as Maven coordinates).
+     */
+    private Set<String> getLaunchClasses() {
+        final Set<String> classes = new HashSet<>();
+        classes.add("Capsule");
+        for (String attr : new String[]{"Main-Class", "Premain-Class", "Agent-Class"}) {
+            if (getAttribute(attr) != null)
+                classes.add(getAttribute(attr));
+        }
+        for (String caplet : getListAttribute("Caplets")) {
+            if (!caplet.contains(":"))
+                classes.add(caplet);
+        }
+        return classes;
+    }
+
+    /**
+     * The name of the (top-level) class in the given class-file entry, or {@code null} if it isn't a class.
+     */
+    private static String getClassName(String path) {
+        if (!path.endsWith(".class"))
+            return null;
+        String name = path.substring(0, path.length() - ".class".length());
+        if (name.indexOf('$') >= 0)
+            name = name.substring(0, name.indexOf('$'));
+        return name.replace('/', '.');
+    }
+
+    private Deflater getDeflater() {
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        return deflater;
     }
 
-    private static void addEntryNoClose(JarOutputStream jarOut, String path, InputStream is) throws IOException {
-        jarOut.putNextEntry(new JarEntry(path));
-        copy0(is, jarOut);
-        jarOut.closeEntry();
+    private static CompressedEntry deflate(String name, long time, byte[] data, int length, Deflater deflater) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] out = new byte[length + (length >> 3) + 64];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == out.length)
+                    out = Arrays.copyOf(out, 2 * out.length);
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return new CompressedEntry(name, ZipEntry.DEFLATED, time, crc.getValue(), length, out, n);
+        } finally {
+            deflater.reset();
+        }
     }
 
-    private static void addEntry(JarOutputStream jarOut, String path, byte[] data) throws IOException {
-        jarOut.putNextEntry(new JarEntry(path));
-        jarOut.write(data);
-        jarOut.flush();
-        jarOut.closeEntry();
+    private static final class CompressedEntry {
+        final String name;
+        final int method;
+        final long time;
+        final long crc;
+        final long size;
+        final byte[] data; // null if the data is in the deferred buffer
+        final long length;
+
+        CompressedEntry(String name, int method, long time, long crc, long size, byte[] data, long length) {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.length = length;
+        }
     }
     //</editor-fold>
 
@@ -591,7 +984,7 @@ public class Jar {
      */
     public Jar setJarPrefix(String value) {
         verifyNotSealed();
-        if (jos != null)
+        if (isWriting())
             throw new IllegalStateException("Really executable cannot be set after entries are added.");
         if (value != null && jarPrefixFile != null)
             throw new IllegalStateException("A prefix has already been set (" + jarPrefixFile + ")");
@@ -607,13 +1000,49 @@ public class Jar {
      */
     public Jar setJarPrefix(Path file) {
         verifyNotSealed();
-        if (jos != null)
+        if (isWriting())
             throw new IllegalStateException("Really executable cannot be set after entries are added.");
         if (file != null && jarPrefixStr != null)
             throw new IllegalStateException("A prefix has already been set (" + jarPrefixStr + ")");
         this.jarPrefixFile = file;
         return this;
     }
+
+    /**
+     * Sets the number of threads used to compress entries.
+     * If greater than 1, entries are compressed concurrently, while the JAR is written in the order the entries are added, just as it
+     * would have been otherwise.
+     *
+     * @param threads the number of threads; 0 or 1 to compress entries on the thread adding them (the default)
+     * @return {@code this}
+     */
+    public Jar setParallelism(int threads) {
+        verifyNotSealed();
+        if (isWriting())
+            throw new IllegalStateException("Parallelism cannot be set after entries are added.");
+        if (threads < 0)
+            throw new IllegalArgumentException("Negative number of threads: " + threads);
+        this.parallelism = threads;
+        return this;
+    }
+
+    /**
+     * Sets whether the JAR is laid out for fast startup.
+     * If {@code true}, the manifest and the classes used to launch the capsule -- {@code Capsule}, the caplets, and the main and agent
+     * classes (along with their nested classes) -- are written first, followed by all other entries in the order they're added, and
+     * entries that are already compressed (nested JARs, ZIPs and gzipped files) are stored rather than compressed again.
+     * The capsule's manifest attributes must therefore be set before any entries are added.
+     *
+     * @param value whether to lay out the JAR for fast startup (by default, {@code false})
+     * @return {@code this}
+     */
+    public Jar setStartupLayout(boolean value) {
+        verifyNotSealed();
+        if (isWriting())
+            throw new IllegalStateException("Startup layout cannot be set after entries are added.");
+        this.startupLayout = value;
+        return this;
+    }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="Writing">
@@ -629,7 +1058,7 @@ public class Jar {
     public Jar setOutputStream(OutputStream os) {
         if (os == null)
             throw new NullPointerException("The OutputStream is null");
-        if (jos != null)
+        if (isWriting())
             throw new IllegalStateException("Entries have already been added, the JAR has been written or setOutputStream has already been called.");
         this.os = os;
         return this;
@@ -661,14 +1090,23 @@ public class Jar {
 
     private void beginWriting() throws IOException {
         verifyNotSealed();
-        if (jos != null)
+        if (isWriting())
             return;
         if (os == null)
-            this.os = new ByteArrayOutputStream();
+            this.os = new Buffer(MAX_BUFFER_SIZE);
         writePrefix(os);
         if (getAttribute(ATTR_MANIFEST_VERSION) == null)
             setAttribute(ATTR_MANIFEST_VERSION, "1.0");
-        jos = new JarOutputStream(os, manifest);
+        zip = new ZipWriter(os);
+        if (startupLayout) {
+            launchClasses = getLaunchClasses();
+            deferred = new Buffer(MAX_BUFFER_SIZE);
+        }
+        final ByteArrayOutputStream man = new ByteArrayOutputStream();
+        manifest.write(man);
+        final CompressedEntry entry = deflate(MANIFEST_NAME, System.currentTimeMillis(), man.toByteArray(), man.size(), getDeflater());
+        addName(MANIFEST_NAME);
+        zip.writeEntry(entry.name, entry.method, entry.time, entry.crc, entry.size, entry.data, 0, (int) entry.length);
         if (jis != null)
             addEntries(null, jis);
     }
@@ -691,7 +1129,16 @@ public class Jar {
             return this;
         beginWriting();
         // writeManifest(); - some JDK Jar classes (like JarInputStream) assume that the manifest must be the first entry
-        jos.close();
+        try {
+            writePending(0);
+            writeDeferred();
+            zip.close();
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
+            if (deflater != null)
+                deflater.end();
+        }
         this.sealed = true;
         return this;
     }
@@ -702,19 +1149,43 @@ public class Jar {
     public <T extends OutputStream> T write(T os) throws IOException {
         close();
 
-        if (!(this.os instanceof ByteArrayOutputStream))
+        if (!(this.os instanceof Buffer))
             throw new IllegalStateException("Cannot write to another target if setOutputStream has been called");
-        final byte[] content = ((ByteArrayOutputStream) this.os).toByteArray();
+        final Buffer content = (Buffer) this.os;
 
-        if (packer != null)
-            packer.pack(new JarInputStream(new ByteArrayInputStream(content)), os);
-        else
-            os.write(content);
-
-        os.close();
+        try {
+            if (packer != null) {
+                try (InputStream is = content.getInputStream()) {
+                    packer.pack(new JarInputStream(is), os);
+                }
+            } else
+                content.writeTo(os);
+        } finally {
+            os.close();
+        }
         return os;
     }
 
+    /**
+     * Deletes the temporary files holding this JAR's content, if any have been used, without waiting for the JVM to exit.
+     * Once released, the JAR is sealed, and can no longer be written.
+     */
+    public Jar release() throws IOException {
+        this.sealed = true;
+        try {
+            if (deferred != null)
+                deferred.release();
+        } finally {
+            if (os instanceof Buffer)
+                ((Buffer) os).release();
+        }
+        return this;
+    }
+
+    private boolean isWriting() {
+        return zip != null;
+    }
+
     private void verifyNotSealed() {
         if (sealed)
             throw new IllegalStateException("This JAR has been sealed (when it was written)");
@@ -724,17 +1195,21 @@ public class Jar {
      * Writes this JAR to a file.
      */
     public File write(File file) throws IOException {
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            write(fos);
-            return file;
-        }
+        write(file.toPath());
+        return file;
     }
 
     /**
      * Writes this JAR to a file.
      */
     public Path write(Path path) throws IOException {
+        close();
+        final Buffer content = this.os instanceof Buffer && packer == null ? (Buffer) this.os : null;
+        if (content != null && content.isCopiedTo(path))
+            return path; // already there; opening the file for writing would truncate the content
         write(Files.newOutputStream(path));
+        if (content != null)
+            content.copiedTo(path);
         return path;
     }
 
@@ -797,6 +1272,108 @@ public class Jar {
     }
     //</editor-fold>
 
+    //<editor-fold defaultstate="collapsed" desc="Buffer">
+    /////////// Buffer ///////////////////////////////////
+    /**
+     * Holds the written JAR in memory until it grows beyond a given size, and then in a temporary file.
+     */
+    private static final class Buffer extends OutputStream {
+        private final int maxSize;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path file;
+        private boolean temporary;
+        private OutputStream out = memory;
+        private boolean released;
+
+        Buffer(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            reserve(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            reserve(len);
+            out.write(b, off, len);
+        }
+
+        private void reserve(int len) throws IOException {
+            if (memory != null && memory.size() + len > maxSize) {
+                file = Files.createTempFile("jar-", ".tmp");
+                file.toFile().deleteOnExit(); // in case the JAR is neither written to a file nor released
+                temporary = true;
+                out = new BufferedOutputStream(Files.newOutputStream(file));
+                memory.writeTo(out);
+                memory = null;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        InputStream getInputStream() throws IOException {
+            verifyNotReleased();
+            return file != null ? Files.newInputStream(file) : new ByteArrayInputStream(memory.toByteArray());
+        }
+
+        void writeTo(OutputStream os) throws IOException {
+            verifyNotReleased();
+            if (file != null)
+                Files.copy(file, os);
+            else
+                memory.writeTo(os);
+        }
+
+        /**
+         * Replaces the temporary file, if one has been used, with a file the content has been copied to.
+         */
+        void copiedTo(Path copy) throws IOException {
+            if (temporary) {
+                deleteTemporary();
+                file = copy;
+            }
+        }
+
+        boolean isCopiedTo(Path path) throws IOException {
+            return file != null && !temporary && Files.exists(path) && Files.isSameFile(file, path);
+        }
+
+        /**
+         * Discards the content, and deletes the temporary file if one has been used.
+         */
+        void release() throws IOException {
+            if (released)
+                return;
+            released = true;
+            memory = null;
+            if (temporary)
+                deleteTemporary();
+        }
+
+        private void deleteTemporary() throws IOException {
+            out.close();
+            Files.deleteIfExists(file);
+            temporary = false;
+        }
+
+        private void verifyNotReleased() {
+            if (released)
+                throw new IllegalStateException("This JAR has been released, and its content discarded");
+        }
+    }
+    //</editor-fold>
+
     //<editor-fold defaultstate="collapsed" desc="Utils">
     /////////// Utils ///////////////////////////////////
     private static JarInputStream newJarInputStream(InputStream in) throws IOException {
@@ -807,21 +1384,6 @@ public class Jar {
         return new co.paralleluniverse.common.ZipInputStream(in);
     }
 
-    private static void copy(InputStream is, OutputStream os) throws IOException {
-        try {
-            copy0(is, os);
-        } finally {
-            is.close();
-        }
-    }
-
-    private static void copy0(InputStream is, OutputStream os) throws IOException {
-        final byte[] buffer = new byte[1024];
-        for (int bytesRead; (bytesRead = is.read(buffer)) != -1;)
-            os.write(buffer, 0, bytesRead);
-        os.flush();
-    }
-
     private static String join(Collection<?> list, String separator) {
         if (list == null)
             return null;
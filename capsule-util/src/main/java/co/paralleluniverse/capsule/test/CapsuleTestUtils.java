@@ -35,7 +35,7 @@ public final class CapsuleTestUtils {
     static {
         try {
             capsuleClass = Class.forName("Capsule");
-            accessible(capsuleClass.getDeclaredField("PROFILE")).set(null, 10); // disable profiling even when log=debug
+            setStatic(capsuleClass.getDeclaredField("PROFILE"), 10); // disable profiling even when log=debug
         } catch (ReflectiveOperationException e) {
             throw new AssertionError(e);
         }
@@ -114,7 +114,7 @@ public final class CapsuleTestUtils {
 
     public static void setStream(Class<?> capsuleClass, String stream, PrintStream ps) {
         try {
-            accessible(actualCapsuleClass(capsuleClass).getDeclaredField(stream)).set(null, ps);
+            setStatic(actualCapsuleClass(capsuleClass).getDeclaredField(stream), ps);
         } catch (ReflectiveOperationException e) {
             throw new AssertionError(e);
         }
@@ -155,6 +155,8 @@ public final class CapsuleTestUtils {
                     Field modifiersField = Field.class.getDeclaredField("modifiers");
                     modifiersField.setAccessible(true);
                     modifiersField.setInt(field, field.getModifiers() & ~Modifier.FINAL);
+                } catch (NoSuchFieldException e) {
+                    // Java 12+ hides Field.modifiers; static final fields can only be set with setStatic
                 } catch (ReflectiveOperationException e) {
                     throw new AssertionError(e);
                 }
@@ -164,6 +166,28 @@ public final class CapsuleTestUtils {
         return x;
     }
 
+    /**
+     * Sets the value of a static field, even if it's final.
+     */
+    public static void setStatic(Field field, Object value) throws ReflectiveOperationException {
+        accessible(field);
+        if ((field.getModifiers() & Modifier.FINAL) == 0) {
+            field.set(null, value);
+            return;
+        }
+        final Field theUnsafe = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        final sun.misc.Unsafe unsafe = (sun.misc.Unsafe) theUnsafe.get(null);
+        final Object base = unsafe.staticFieldBase(field);
+        final long offset = unsafe.staticFieldOffset(field);
+        if (field.getType() == int.class)
+            unsafe.putIntVolatile(base, offset, (Integer) value);
+        else if (!field.getType().isPrimitive())
+            unsafe.putObjectVolatile(base, offset, field.getType().cast(value));
+        else
+            throw new IllegalArgumentException("Unsupported field type " + field.getType());
+    }
+
     public static Class<?> actualCapsuleClass(Class<?> clazz) {
         for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
             if (c.getName().equals("Capsule"))
@@ -18,6 +18,10 @@ import java.util.Enumeration;
  * @author pron
  */
 public abstract class FlexibleClassLoader extends ClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
     private final boolean childFirst;
     private final ThreadLocal<Boolean> inGetResourceAsStream = new ThreadLocal<Boolean>();
 
@@ -61,15 +65,18 @@ public abstract class FlexibleClassLoader extends ClassLoader {
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
         if (!childFirst)
             return super.loadClass(name, resolve);
-        Class c;
-        try {
-            c = findClass(name);
-            if (resolve)
-                resolveClass(c);
-            return c;
-        } catch (ClassNotFoundException e) {
+        // the lock is per class name, as this class loader is parallel capable (ClassLoader.loadClass takes the same, reentrant, lock)
+        synchronized (getClassLoadingLock(name)) {
+            Class c;
+            try {
+                c = findClass(name);
+                if (resolve)
+                    resolveClass(c);
+                return c;
+            } catch (ClassNotFoundException e) {
+            }
+            return super.loadClass(name, resolve);
         }
-        return super.loadClass(name, resolve);
     }
 
     @Override
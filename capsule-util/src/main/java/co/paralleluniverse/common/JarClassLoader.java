@@ -17,48 +17,69 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 
 /**
+ * Loads classes and resources from a JAR file or an in-memory JAR.
+ * Entries are located through an index of the JAR's central directory, which is read once, when the class loader is created.
  *
  * @author pron
  */
 public final class JarClassLoader extends FlexibleClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
     private final Manifest mf;
     private final byte[] buffer;
     private final Path jarFile;
+    private final ZipIndex index; // null if the JAR's central directory can't be used, in which case the JAR is scanned
 
     public JarClassLoader(byte[] jar, ClassLoader parent, boolean childFirst) throws IOException {
         super(parent, childFirst);
         this.buffer = jar;
         this.jarFile = null;
-        this.mf = getManifest(newInputStream());
+        this.index = ZipIndex.read(ByteBuffer.wrap(jar), true);
+        this.mf = readManifest();
     }
 
     public JarClassLoader(byte[] jar, boolean childFirst) throws IOException {
         super(childFirst);
         this.buffer = jar;
         this.jarFile = null;
-        this.mf = getManifest(newInputStream());
+        this.index = ZipIndex.read(ByteBuffer.wrap(jar), true);
+        this.mf = readManifest();
     }
 
     public JarClassLoader(Path jarFile, ClassLoader parent, boolean childFirst) throws IOException {
         super(parent, childFirst);
         this.buffer = null;
         this.jarFile = jarFile;
-        this.mf = getManifest(newInputStream());
+        this.index = readIndex(jarFile);
+        this.mf = readManifest();
     }
 
     public JarClassLoader(Path jarFile, boolean childFirst) throws IOException {
         super(childFirst);
         this.buffer = null;
         this.jarFile = jarFile;
-        this.mf = getManifest(newInputStream());
+        this.index = readIndex(jarFile);
+        this.mf = readManifest();
+    }
+
+    private static ZipIndex readIndex(Path jarFile) throws IOException {
+        try (SeekableByteChannel ch = Files.newByteChannel(jarFile)) {
+            return ZipIndex.read(ch, true);
+        }
     }
 
     public Manifest getManifest() {
@@ -85,6 +106,11 @@ public final class JarClassLoader extends FlexibleClassLoader {
     }
 
     private boolean hasResource(String path) {
+        if (index != null) {
+            if (index.get(path) != null && path.endsWith("/"))
+                throw new RuntimeException(new FileNotFoundException(path + " is a directory"));
+            return index.get(path) != null;
+        }
         try (InputStream is = findResourceAsStream(path)) {
             return is != null;
         } catch (IOException e) {
@@ -95,6 +121,8 @@ public final class JarClassLoader extends FlexibleClassLoader {
     @Override
     protected InputStream findResourceAsStream(String path) {
         try {
+            if (index != null)
+                return openEntry(path);
             final ZipInputStream jis = new ZipInputStream(newInputStream());
             for (ZipEntry entry; (entry = jis.getNextEntry()) != null;) {
                 if (path.equalsIgnoreCase(entry.getName())) {
@@ -112,6 +140,20 @@ public final class JarClassLoader extends FlexibleClassLoader {
 
     @Override
     protected byte[] readResource(String path) {
+        if (index != null) {
+            try (ZipInputStream jis = openEntry(path)) {
+                if (jis == null)
+                    return null;
+                final byte[] buf = new byte[(int) index.get(path)[ZipIndex.SIZE]];
+                for (int n = 0, r; n < buf.length; n += r) {
+                    if ((r = jis.read(buf, n, buf.length - n)) < 0)
+                        throw new IOException("Unexpected end of entry " + path);
+                }
+                return buf;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         try (ZipInputStream jis = new ZipInputStream(newInputStream())) {
             for (ZipEntry entry; (entry = jis.getNextEntry()) != null;) {
                 if (path.equalsIgnoreCase(entry.getName())) {
@@ -156,6 +198,36 @@ public final class JarClassLoader extends FlexibleClassLoader {
         return total;
     }
 
+    /*
+     * Returns a stream of the given entry's content, positioned at its local header.
+     */
+    private ZipInputStream openEntry(String path) throws IOException {
+        final long[] entry = index.get(path);
+        if (entry == null)
+            return null;
+        if (path.endsWith("/"))
+            throw new FileNotFoundException(path + " is a directory");
+        final InputStream is;
+        if (buffer != null)
+            is = new ByteArrayInputStream(buffer, (int) entry[ZipIndex.OFFSET], buffer.length - (int) entry[ZipIndex.OFFSET]);
+        else {
+            final SeekableByteChannel ch = Files.newByteChannel(jarFile);
+            try {
+                ch.position(entry[ZipIndex.OFFSET]);
+            } catch (IOException e) {
+                ch.close();
+                throw e;
+            }
+            is = Channels.newInputStream(ch);
+        }
+        final ZipInputStream zis = new ZipInputStream(is);
+        if (zis.getNextEntry() == null) {
+            zis.close();
+            throw new IOException("Bad local header for " + path);
+        }
+        return zis;
+    }
+
     private InputStream newInputStream() {
         try {
             return buffer != null ? new ByteArrayInputStream(buffer) : Files.newInputStream(jarFile);
@@ -164,8 +236,13 @@ public final class JarClassLoader extends FlexibleClassLoader {
         }
     }
 
-    private static Manifest getManifest(InputStream is) throws IOException {
-        try (JarInputStream jis = new JarInputStream(is)) {
+    private Manifest readManifest() throws IOException {
+        if (index != null) {
+            try (InputStream is = openEntry(JarFile.MANIFEST_NAME)) {
+                return is != null ? new Manifest(is) : null;
+            }
+        }
+        try (JarInputStream jis = new JarInputStream(newInputStream())) {
             return jis.getManifest();
         }
     }
@@ -0,0 +1,145 @@
+/*
+ * Capsule
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A JAR file mapped into memory, whose entries are found through an index of its central directory,
+ * and are read straight from the mapped region.
+ */
+final class MappedJar {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_LENGTH = 30;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final ZipIndex index;
+    private final Set<String> dirs;
+
+    private MappedJar(Path path, ByteBuffer buffer, ZipIndex index) {
+        this.path = path;
+        this.buffer = buffer;
+        this.index = index;
+        this.dirs = new HashSet<>();
+        for (String name : index.names()) {
+            for (int i = name.indexOf('/'); i >= 0; i = name.indexOf('/', i + 1))
+                dirs.add(name.substring(0, i));
+        }
+    }
+
+    /**
+     * Maps the given JAR file.
+     *
+     * @return the mapped JAR, or {@code null} if the file is too large to map, or its central directory can't be used.
+     */
+    static MappedJar map(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE)
+                return null;
+            final ByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+            final ZipIndex index = ZipIndex.read(buffer, false);
+            return index != null ? new MappedJar(path, buffer, index) : null;
+        }
+    }
+
+    /**
+     * Whether the given file or directory exists in the JAR.
+     */
+    boolean exists(String name) {
+        name = trimSlash(name);
+        return isFile(name) || dirs.contains(name);
+    }
+
+    boolean isFile(String name) {
+        return index.get(name) != null && !name.endsWith("/");
+    }
+
+    URL getURL(String name) throws MalformedURLException {
+        return new URL("jar:" + path.toUri() + "!/" + trimSlash(name));
+    }
+
+    InputStream getInputStream(String name) throws IOException {
+        final byte[] bytes = read(name);
+        return bytes != null ? new ByteArrayInputStream(bytes) : null;
+    }
+
+    /**
+     * Reads the given entry. Stored entries are copied straight from the mapped region, and compressed entries are inflated straight
+     * into the returned array (only the compressed data is copied, as {@link Inflater} only takes its input from an array).
+     */
+    byte[] read(String name) throws IOException {
+        final long[] entry = isFile(name) ? index.get(name) : null;
+        if (entry == null)
+            return null;
+
+        final ByteBuffer buf = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int loc = (int) entry[ZipIndex.OFFSET];
+        if (buf.getInt(loc) != LOC_SIG)
+            throw new ZipException("Bad local header for " + name + " in " + path);
+        buf.position(loc + LOC_LENGTH + (buf.getShort(loc + 26) & 0xffff) + (buf.getShort(loc + 28) & 0xffff));
+
+        final byte[] out = new byte[(int) entry[ZipIndex.SIZE]];
+        if (entry[ZipIndex.METHOD] == ZipEntry.STORED)
+            buf.get(out);
+        else if (entry[ZipIndex.METHOD] == ZipEntry.DEFLATED) {
+            final byte[] in = new byte[(int) entry[ZipIndex.COMPRESSED_SIZE] + 1]; // the inflater may require an extra byte when no header is used
+            buf.get(in, 0, in.length - 1);
+            final Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(in);
+                int n = 0;
+                while (n < out.length) {
+                    final int r = inflater.inflate(out, n, out.length - n);
+                    if (r == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    n += r;
+                }
+                if (n != out.length)
+                    throw new ZipException("Unexpected end of entry " + name + " in " + path);
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        } else
+            throw new ZipException("Unsupported compression method " + entry[ZipIndex.METHOD] + " for " + name + " in " + path);
+
+        final CRC32 crc = new CRC32();
+        crc.update(out);
+        if (crc.getValue() != entry[ZipIndex.CRC])
+            throw new ZipException("Invalid CRC for " + name + " in " + path);
+        return out;
+    }
+
+    private static String trimSlash(String name) {
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+}
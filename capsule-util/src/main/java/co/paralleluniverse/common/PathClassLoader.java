@@ -23,10 +23,19 @@ import java.util.Enumeration;
 import java.util.List;
 
 /**
+ * Loads classes and resources from directories and JAR files.
+ * JARs on the default file system are memory-mapped and read through an index of their central directory (except on Windows,
+ * where a mapped file can't be deleted until the mapping is collected); other JARs are read through a ZIP file system.
  *
  * @author pron
  */
 public class PathClassLoader extends FlexibleClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private static final boolean MAP_JARS = !System.getProperty("os.name").toLowerCase().startsWith("windows");
+
     private final Object[] paths;
 
     public PathClassLoader(Path[] paths, ClassLoader parent, boolean childFirst) throws IOException {
@@ -53,9 +62,10 @@ public class PathClassLoader extends FlexibleClassLoader {
             for (int i = 0; i < paths.length; i++) {
                 final Path p = paths[i];
                 final Object o;
-                if (Files.isRegularFile(p))
-                    o = FileSystems.newFileSystem(p, null);
-                else
+                if (Files.isRegularFile(p)) {
+                    final MappedJar jar = MAP_JARS && p.getFileSystem() == FileSystems.getDefault() ? MappedJar.map(p) : null;
+                    o = jar != null ? jar : FileSystems.newFileSystem(p, null);
+                } else
                     o = p;
                 os[i] = o;
             }
@@ -94,6 +104,11 @@ public class PathClassLoader extends FlexibleClassLoader {
     protected URL findResource1(String name) {
         try {
             for (Object o : paths) {
+                if (o instanceof MappedJar) {
+                    if (((MappedJar) o).exists(name))
+                        return ((MappedJar) o).getURL(name);
+                    continue;
+                }
                 final Path p = resolve(o, name);
                 if (Files.exists(p))
                     return p.toUri().toURL();
@@ -109,6 +124,11 @@ public class PathClassLoader extends FlexibleClassLoader {
         try {
             final List<URL> urls = new ArrayList<>();
             for (Object o : paths) {
+                if (o instanceof MappedJar) {
+                    if (((MappedJar) o).exists(name))
+                        urls.add(((MappedJar) o).getURL(name));
+                    continue;
+                }
                 final Path p = resolve(o, name);
                 if (Files.exists(p))
                     urls.add(p.toUri().toURL());
@@ -123,6 +143,11 @@ public class PathClassLoader extends FlexibleClassLoader {
     protected InputStream findResourceAsStream(String name) {
         try {
             for (Object o : paths) {
+                if (o instanceof MappedJar) {
+                    if (((MappedJar) o).isFile(name))
+                        return ((MappedJar) o).getInputStream(name);
+                    continue;
+                }
                 final Path p = resolve(o, name);
                 if (isFileResource(p))
                     return Files.newInputStream(p);
@@ -137,6 +162,11 @@ public class PathClassLoader extends FlexibleClassLoader {
     protected byte[] readResource(String name) {
         try {
             for (Object o : paths) {
+                if (o instanceof MappedJar) {
+                    if (((MappedJar) o).isFile(name))
+                        return ((MappedJar) o).read(name);
+                    continue;
+                }
                 final Path p = resolve(o, name);
                 if (isFileResource(p))
                     return Files.readAllBytes(p);
@@ -0,0 +1,179 @@
+/*
+ * Capsule
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+/**
+ * An index of a ZIP file's entries, read from its central directory.
+ * Each entry name is mapped to {local header offset, compression method, compressed size, size, CRC}. Offsets are adjusted for
+ * any data preceding the ZIP (as in really executable JARs). If an entry name appears more than once, the first entry is used.
+ */
+public final class ZipIndex {
+    public static final int OFFSET = 0;
+    public static final int METHOD = 1;
+    public static final int COMPRESSED_SIZE = 2;
+    public static final int SIZE = 3;
+    public static final int CRC = 4;
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_LENGTH = 30;
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_LENGTH = 46;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff; // the number of entries may not fit in the END record
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, long[]> entries;
+    private final boolean ignoreCase;
+
+    private ZipIndex(Map<String, long[]> entries, boolean ignoreCase) {
+        this.entries = entries;
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Reads the index of the ZIP file read by the given channel.
+     *
+     * @param ignoreCase whether entry names are looked up ignoring case
+     * @return the index, or {@code null} if the file has no usable central directory (e.g. a ZIP64 file)
+     */
+    public static ZipIndex read(SeekableByteChannel ch, boolean ignoreCase) throws IOException {
+        final long size = ch.size();
+        final int tailLength = (int) Math.min(size, END_LENGTH + 0xffff);
+        final long tailPos = size - tailLength;
+        final ByteBuffer tail = read(ch, tailPos, tailLength);
+        final int end = findEnd(tail);
+        if (end < 0)
+            return null;
+        final int count = tail.getShort(end + 10) & 0xffff;
+        final long cenSize = tail.getInt(end + 12) & 0xffffffffL;
+        final long cenOffset = tail.getInt(end + 16) & 0xffffffffL;
+        final long cenPos = tailPos + end - cenSize;
+        if (count == ZIP64_MAGIC_COUNT || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC || cenPos < 0 || cenPos < cenOffset)
+            return null;
+        return parse(read(ch, cenPos, (int) cenSize), 0, count, cenPos - cenOffset, ignoreCase);
+    }
+
+    /**
+     * Reads the index of the ZIP file contained in the given buffer.
+     *
+     * @param ignoreCase whether entry names are looked up ignoring case
+     * @return the index, or {@code null} if the file has no usable central directory (e.g. a ZIP64 file)
+     */
+    public static ZipIndex read(ByteBuffer zip, boolean ignoreCase) {
+        zip = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int end = findEnd(zip);
+        if (end < 0)
+            return null;
+        final int count = zip.getShort(end + 10) & 0xffff;
+        final long cenSize = zip.getInt(end + 12) & 0xffffffffL;
+        final long cenOffset = zip.getInt(end + 16) & 0xffffffffL;
+        final long cenPos = end - cenSize;
+        if (count == ZIP64_MAGIC_COUNT || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC || cenPos < 0 || cenPos < cenOffset)
+            return null;
+        return parse(zip, (int) cenPos, count, cenPos - cenOffset, ignoreCase);
+    }
+
+    private static int findEnd(ByteBuffer buf) {
+        for (int i = buf.limit() - END_LENGTH; i >= Math.max(0, buf.limit() - END_LENGTH - 0xffff); i--) {
+            if (buf.getInt(i) == END_SIG && i + END_LENGTH + (buf.getShort(i + 20) & 0xffff) == buf.limit())
+                return i;
+        }
+        return -1;
+    }
+
+    private static ZipIndex parse(ByteBuffer cen, int pos, int count, long prefix, boolean ignoreCase) {
+        final Map<String, long[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            if (pos + CEN_LENGTH > cen.limit() || cen.getInt(pos) != CEN_SIG)
+                return null;
+            final long method = cen.getShort(pos + 10) & 0xffff;
+            final long crc = cen.getInt(pos + 16) & 0xffffffffL;
+            final long compressedSize = cen.getInt(pos + 20) & 0xffffffffL;
+            final long size = cen.getInt(pos + 24) & 0xffffffffL;
+            final int nameLength = cen.getShort(pos + 28) & 0xffff;
+            final int extraLength = cen.getShort(pos + 30) & 0xffff;
+            final int commentLength = cen.getShort(pos + 32) & 0xffff;
+            final long offset = cen.getInt(pos + 42) & 0xffffffffL;
+            if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC || offset == ZIP64_MAGIC)
+                return null;
+
+            String name = getString(cen, pos + CEN_LENGTH, nameLength);
+            if (ignoreCase)
+                name = name.toLowerCase(Locale.ENGLISH);
+            if (!entries.containsKey(name))
+                entries.put(name, new long[]{prefix + offset, method, compressedSize, size, crc});
+            pos += CEN_LENGTH + nameLength + extraLength + commentLength;
+        }
+        return new ZipIndex(entries, ignoreCase);
+    }
+
+    /**
+     * Returns the given entry, or {@code null} if not found.
+     */
+    public long[] get(String name) {
+        return entries.get(ignoreCase ? name.toLowerCase(Locale.ENGLISH) : name);
+    }
+
+    public Set<String> names() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the position of the given entry's (compressed or stored) data in the ZIP file read by the given channel, which follows
+     * the entry's local header.
+     *
+     * @param entry an entry returned by {@link #get(String) get}
+     */
+    public static long getDataOffset(SeekableByteChannel ch, long[] entry) throws IOException {
+        final ByteBuffer loc = read(ch, entry[OFFSET], LOC_LENGTH);
+        if (loc.getInt(0) != LOC_SIG)
+            throw new ZipException("Bad local header at " + entry[OFFSET]);
+        return entry[OFFSET] + LOC_LENGTH + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+    }
+
+    private static String getString(ByteBuffer buf, int pos, int length) {
+        if (buf.hasArray())
+            return new String(buf.array(), buf.arrayOffset() + pos, length, UTF8);
+        final byte[] bytes = new byte[length];
+        final ByteBuffer b = buf.duplicate();
+        b.position(pos);
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static ByteBuffer read(SeekableByteChannel ch, long pos, int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        ch.position(pos);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0)
+                throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Capsule
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP file whose entries are given already compressed (or stored), along with their CRC and sizes, so that compression
+ * can be done elsewhere (e.g. concurrently), or skipped altogether when copying entries from another ZIP.
+ * Entries whose content is not known in advance can also be deflated as they are written.
+ * Offsets are relative to where the stream was when the writer was created, so any prefix written to the stream before is not
+ * considered part of the ZIP (as with {@link java.util.zip.ZipOutputStream}). Like {@code ZipOutputStream}, the writer uses ZIP64 extensions
+ * for entries, offsets and central directories that don't fit in the original format (4GB, or 65535 entries), and only for them.
+ */
+public final class ZipWriter {
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_LENGTH = 30;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_LENGTH = 46;
+    private static final int END_SIG = 0x06054b50;
+    private static final int END_LENGTH = 22;
+    private static final int EXT_SIG = 0x08074b50;
+    private static final int EXT_LENGTH = 16;
+    private static final int EXT64_LENGTH = 24;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_END_LENGTH = 56;
+    private static final int ZIP64_LOC_SIG = 0x07064b50;
+    private static final int ZIP64_LOC_LENGTH = 20;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int ZIP64_MAGIC_COUNT = 0xffff;
+    private static final int ZIP64_VERSION = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int JAR_MAGIC = 0xCAFE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final byte[] buffer = new byte[8192];
+    private long written;
+    private boolean finished;
+
+    public ZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Whether an entry with the given name has already been written.
+     */
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Writes an entry whose (compressed or stored) data is given.
+     *
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param time   the entry's modification time, in milliseconds since the epoch
+     * @param crc    the CRC-32 of the uncompressed content
+     * @param size   the size of the uncompressed content
+     */
+    public void writeEntry(String name, int method, long time, long crc, long size, byte[] data, int off, int len) throws IOException {
+        writeHeader(name, method, 0, time, crc, len, size);
+        write(data, off, len);
+    }
+
+    /**
+     * Writes an entry whose (compressed or stored) data, of the given length, is read from the given stream.
+     * The stream is not closed.
+     *
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     * @param time   the entry's modification time, in milliseconds since the epoch
+     * @param crc    the CRC-32 of the uncompressed content
+     * @param size   the size of the uncompressed content
+     */
+    public void writeEntry(String name, int method, long time, long crc, long size, long compressedSize, InputStream data) throws IOException {
+        writeHeader(name, method, 0, time, crc, compressedSize, size);
+        for (long remaining = compressedSize; remaining > 0;) {
+            final int n = data.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+            if (n < 0)
+                throw new ZipException("Unexpected end of data for entry " + name);
+            write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Writes an entry whose content is read from the given stream, and deflated, as it is written.
+     * As the CRC and sizes aren't known in advance, they follow the entry's data. The stream is not closed.
+     *
+     * @param time     the entry's modification time, in milliseconds since the epoch
+     * @param deflater the deflater to use (which must not write a header); it is reset when done
+     */
+    public void writeEntry(String name, long time, InputStream content, Deflater deflater) throws IOException {
+        final Entry entry = writeHeader(name, ZipEntry.DEFLATED, FLAG_DATA_DESCRIPTOR, time, 0, 0, 0);
+        final long start = written;
+        final CRC32 crc = new CRC32();
+        final byte[] in = new byte[8192];
+        try {
+            for (int n; (n = content.read(in)) >= 0;) {
+                crc.update(in, 0, n);
+                deflater.setInput(in, 0, n);
+                while (!deflater.needsInput())
+                    write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.finish();
+            while (!deflater.finished())
+                write(buffer, 0, deflater.deflate(buffer));
+            entry.crc = crc.getValue();
+            entry.size = deflater.getBytesRead();
+            entry.compressedSize = written - start;
+
+            // the sizes in the data descriptor are 8 bytes long if they don't fit in 4 (as ZipInputStream expects)
+            final boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            final ByteBuffer ext = ByteBuffer.allocate(zip64 ? EXT64_LENGTH : EXT_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            ext.putInt(EXT_SIG).putInt((int) entry.crc);
+            if (zip64)
+                ext.putLong(entry.compressedSize).putLong(entry.size);
+            else
+                ext.putInt((int) entry.compressedSize).putInt((int) entry.size);
+            write(ext.array(), 0, ext.capacity());
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Writes the central directory. Does not close the stream.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        final long cenOffset = written;
+        for (Entry entry : entries)
+            writeCentralRecord(entry);
+        final long cenSize = written - cenOffset;
+
+        final int count = entries.size();
+        if (count >= ZIP64_MAGIC_COUNT || cenSize >= ZIP64_MAGIC || cenOffset >= ZIP64_MAGIC) {
+            final ByteBuffer end64 = ByteBuffer.allocate(ZIP64_END_LENGTH + ZIP64_LOC_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            end64.putInt(ZIP64_END_SIG).putLong(ZIP64_END_LENGTH - 12) // the size of the rest of the record
+                    .putShort((short) ZIP64_VERSION).putShort((short) ZIP64_VERSION).putInt(0).putInt(0) // disk numbers
+                    .putLong(count).putLong(count).putLong(cenSize).putLong(cenOffset);
+            end64.putInt(ZIP64_LOC_SIG).putInt(0).putLong(written).putInt(1); // the locator: disk number, the record's offset, disk count
+            write(end64.array(), 0, end64.capacity());
+        }
+
+        final ByteBuffer end = ByteBuffer.allocate(END_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_SIG).putShort((short) 0).putShort((short) 0)
+                .putShort((short) Math.min(count, ZIP64_MAGIC_COUNT)).putShort((short) Math.min(count, ZIP64_MAGIC_COUNT))
+                .putInt((int) Math.min(cenSize, ZIP64_MAGIC)).putInt((int) Math.min(cenOffset, ZIP64_MAGIC)).putShort((short) 0);
+        write(end.array(), 0, END_LENGTH);
+        out.flush();
+    }
+
+    /**
+     * Writes the central directory, and closes the stream.
+     */
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the local header, and adds the entry to those written to the central directory.
+     */
+    private Entry writeHeader(String name, int method, int flags, long time, long crc, long compressedSize, long size) throws IOException {
+        if (finished)
+            throw new IllegalStateException("ZIP file has been finished");
+        if (!names.add(name))
+            throw new ZipException("duplicate entry: " + name);
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+            throw new ZipException("Unsupported compression method " + method);
+
+        // the first entry is marked with the JAR magic number, like JarOutputStream does
+        final Entry entry = new Entry(name.getBytes(UTF8), method, flags | FLAG_UTF8, (int) dosTime(time), written, entries.isEmpty());
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+        entries.add(entry);
+
+        // the sizes of an entry followed by a data descriptor are only known in the central directory
+        final boolean zip64 = (flags & FLAG_DATA_DESCRIPTOR) == 0 && (size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC);
+        final int extraLength = (zip64 ? 20 : 0) + (entry.jarMagic ? 4 : 0);
+        final ByteBuffer loc = ByteBuffer.allocate(LOC_LENGTH + entry.name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+        loc.putInt(LOC_SIG).putShort((short) (zip64 ? ZIP64_VERSION : version(method))).putShort((short) entry.flags).putShort((short) method)
+                .putInt(entry.dosTime).putInt((int) crc)
+                .putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize)).putInt((int) (zip64 ? ZIP64_MAGIC : size))
+                .putShort((short) entry.name.length).putShort((short) extraLength).put(entry.name);
+        if (zip64)
+            loc.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(size).putLong(compressedSize);
+        if (entry.jarMagic)
+            loc.putShort((short) JAR_MAGIC).putShort((short) 0);
+        write(loc.array(), 0, loc.capacity());
+        return entry;
+    }
+
+    /**
+     * Writes an entry's central directory record. Sizes and offsets that don't fit in 4 bytes are moved to a ZIP64 extra field.
+     */
+    private void writeCentralRecord(Entry entry) throws IOException {
+        final boolean size64 = entry.size >= ZIP64_MAGIC;
+        final boolean compressedSize64 = entry.compressedSize >= ZIP64_MAGIC;
+        final boolean offset64 = entry.offset >= ZIP64_MAGIC;
+        final int zip64Length = (size64 ? 8 : 0) + (compressedSize64 ? 8 : 0) + (offset64 ? 8 : 0);
+        final int extraLength = (zip64Length > 0 ? 4 + zip64Length : 0) + (entry.jarMagic ? 4 : 0);
+        final int version = zip64Length > 0 ? ZIP64_VERSION : version(entry.method);
+
+        final ByteBuffer record = ByteBuffer.allocate(CEN_LENGTH + entry.name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(CEN_SIG).putShort((short) version).putShort((short) version).putShort((short) entry.flags).putShort((short) entry.method)
+                .putInt(entry.dosTime).putInt((int) entry.crc)
+                .putInt((int) (compressedSize64 ? ZIP64_MAGIC : entry.compressedSize)).putInt((int) (size64 ? ZIP64_MAGIC : entry.size))
+                .putShort((short) entry.name.length).putShort((short) extraLength).putShort((short) 0) // name, extra and comment lengths
+                .putShort((short) 0).putShort((short) 0).putInt(0) // disk number, internal and external attributes
+                .putInt((int) (offset64 ? ZIP64_MAGIC : entry.offset)).put(entry.name);
+        if (zip64Length > 0) {
+            record.putShort((short) ZIP64_EXTRA_ID).putShort((short) zip64Length);
+            if (size64)
+                record.putLong(entry.size);
+            if (compressedSize64)
+                record.putLong(entry.compressedSize);
+            if (offset64)
+                record.putLong(entry.offset);
+        }
+        if (entry.jarMagic)
+            record.putShort((short) JAR_MAGIC).putShort((short) 0);
+        write(record.array(), 0, record.capacity());
+    }
+
+    private static int version(int method) {
+        return method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private static long dosTime(long time) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        final int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+               | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        final int method;
+        final int flags;
+        final int dosTime;
+        final long offset;
+        final boolean jarMagic;
+        long crc;
+        long size;
+        long compressedSize;
+
+        Entry(byte[] name, int method, int flags, int dosTime, long offset, boolean jarMagic) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.offset = offset;
+            this.jarMagic = jarMagic;
+        }
+    }
+}
@@ -0,0 +1,4 @@
+#!/bin/sh
+
+script=$(java -Dcapsule.exec -jar "$0" "$@") || exit $?
+exec /bin/sh "$script"
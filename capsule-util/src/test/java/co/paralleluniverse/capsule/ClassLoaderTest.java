@@ -0,0 +1,163 @@
+/*
+ * Capsule
+ * Copyright (c) 2015, Parallel Universe Software Co. and Contributors. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule;
+
+import co.paralleluniverse.common.JarClassLoader;
+import co.paralleluniverse.common.PathClassLoader;
+import com.google.common.jimfs.Jimfs;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link JarClassLoader} and {@link PathClassLoader}.
+ */
+public class ClassLoaderTest {
+    @Test
+    public void testJarClassLoader() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem();
+        Path jarPath = fs.getPath("test.jar");
+
+        final Class<?> clazz = LoadedClass.class;
+        final String classFile = clazz.getName().replace('.', '/') + ".class";
+        final byte[] classBytes = readAll(clazz.getClassLoader().getResourceAsStream(classFile));
+        new Jar()
+                .setAttribute("Foo", "1234")
+                .setReallyExecutable(true)
+                .addEntry(Paths.get("foo.txt"), Jar.toInputStream("I am foo!\n", UTF_8))
+                .addEntry(Paths.get("dir", "bar.txt"), Jar.toInputStream("I am bar!\n", UTF_8))
+                .addEntry(classFile, new ByteArrayInputStream(classBytes))
+                .write(jarPath);
+
+        for (JarClassLoader cl : Arrays.asList(new JarClassLoader(jarPath, true), new JarClassLoader(Files.readAllBytes(jarPath), true))) {
+            assertEquals("1234", cl.getManifest().getMainAttributes().getValue("Foo"));
+            assertEquals("I am bar!\n", new String(readAll(cl.getResourceAsStream("dir/bar.txt")), UTF_8));
+            assertEquals("I am foo!\n", new String(readAll(cl.getResourceAsStream("FOO.TXT")), UTF_8)); // case-insensitive
+            assertNull(cl.getResourceAsStream("baz.txt"));
+
+            final Class<?> c = cl.loadClass(clazz.getName());
+            assertTrue(c != clazz);
+            assertSame(cl, c.getClassLoader());
+        }
+    }
+
+    @Test
+    public void testPathClassLoader() throws Exception {
+        final Class<?> clazz = LoadedClass.class;
+        final String classFile = clazz.getName().replace('.', '/') + ".class";
+        final byte[] classBytes = readAll(clazz.getClassLoader().getResourceAsStream(classFile));
+        final Jar jar = new Jar()
+                .addEntry(Paths.get("foo.txt"), Jar.toInputStream("I am foo!\n", UTF_8))
+                .addEntry(Paths.get("dir", "bar.txt"), Jar.toInputStream("I am bar!\n", UTF_8))
+                .addEntry(classFile, new ByteArrayInputStream(classBytes));
+
+        final Path tmpJar = Files.createTempFile("capsule-test", ".jar"); // mapped
+        final Path jimfsJar = Jimfs.newFileSystem().getPath("test.jar"); // read through zipfs
+        try {
+            jar.write(tmpJar);
+            jar.write(jimfsJar);
+            for (Path jarPath : Arrays.asList(tmpJar, jimfsJar)) {
+                final PathClassLoader cl = new PathClassLoader(new Path[]{jarPath}, true);
+                try {
+                    assertEquals("I am bar!\n", new String(readAll(cl.getResourceAsStream("dir/bar.txt")), UTF_8));
+                    assertEquals("I am foo!\n", new String(readAll(cl.getResource("foo.txt").openStream()), UTF_8));
+                    assertNull(cl.getResourceAsStream("FOO.TXT"));
+                    assertNull(cl.getResourceAsStream("dir"));
+                    assertNotNull(cl.getResource("dir"));
+                    assertNull(cl.getResource("baz.txt"));
+
+                    final Class<?> c = cl.loadClass(clazz.getName());
+                    assertTrue(c != clazz);
+                    assertSame(cl, c.getClassLoader());
+                } finally {
+                    cl.close();
+                }
+            }
+        } finally {
+            Files.delete(tmpJar);
+        }
+    }
+
+    @Test
+    public void testParallelClassLoading() throws Exception {
+        final byte[] jar = new Jar().addPackageOf(Jar.class).write(new ByteArrayOutputStream()).toByteArray();
+        final List<String> classes = new ArrayList<>();
+        try (JarInputStream jis = new JarInputStream(new ByteArrayInputStream(jar))) {
+            for (JarEntry e; (e = jis.getNextJarEntry()) != null;) {
+                if (e.getName().endsWith(".class"))
+                    classes.add(e.getName().substring(0, e.getName().length() - ".class".length()).replace('/', '.'));
+            }
+        }
+
+        final ClassLoader cl = new JarClassLoader(jar, true);
+        final int threads = 8;
+        final List<Map<String, Class<?>>> loaded = new ArrayList<>();
+        final Throwable[] error = new Throwable[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> ts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Map<String, Class<?>> classMap = new HashMap<>();
+            loaded.add(classMap);
+            ts.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (String name : classes)
+                            classMap.put(name, cl.loadClass(name));
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            }));
+        }
+        for (Thread t : ts)
+            t.start();
+        start.countDown();
+        for (Thread t : ts)
+            t.join();
+
+        if (error[0] != null)
+            throw new AssertionError(error[0]);
+        for (String name : classes) {
+            assertSame(cl, loaded.get(0).get(name).getClassLoader());
+            for (int t = 1; t < threads; t++)
+                assertSame(loaded.get(0).get(name), loaded.get(t).get(name));
+        }
+    }
+
+    static class LoadedClass {
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final byte[] buf = new byte[1024];
+            for (int n; (n = in.read(buf)) >= 0;)
+                baos.write(buf, 0, n);
+            return baos.toByteArray();
+        }
+    }
+}
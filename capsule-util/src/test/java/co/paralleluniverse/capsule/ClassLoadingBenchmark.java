@@ -0,0 +1,94 @@
+/*
+ * Capsule
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package co.paralleluniverse.capsule;
+
+import co.paralleluniverse.common.JarClassLoader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+/**
+ * Measures the throughput of loading classes concurrently through a child-first {@link JarClassLoader}.
+ * Each round creates a fresh class loader and has all threads load all of the JAR's classes (in different orders).
+ * The {@code serialized} figure has every thread lock the class loader around {@code loadClass}, which is how class loading behaves
+ * when the class loader isn't parallel capable.
+ * Run with {@code java -cp <test classpath> co.paralleluniverse.capsule.ClassLoadingBenchmark [threads] [rounds]}.
+ */
+public class ClassLoadingBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final byte[] jar = new Jar()
+                .addPackageOf(Jar.class)
+                .addPackageOf(JarClassLoader.class)
+                .addPackageOf(com.google.common.collect.ImmutableList.class)
+                .write(new ByteArrayOutputStream()).toByteArray();
+        final List<String> classes = classNames(jar);
+        System.out.println(classes.size() + " classes, " + threads + " threads, " + rounds + " rounds");
+
+        for (int i = 0; i < 3; i++) {
+            System.out.println("parallel:   " + classesPerSecond(jar, classes, threads, rounds, false) + " classes/s");
+            System.out.println("serialized: " + classesPerSecond(jar, classes, threads, rounds, true) + " classes/s");
+        }
+    }
+
+    static long classesPerSecond(byte[] jar, List<String> classes, int threads, int rounds, boolean serialized) throws Exception {
+        final long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++)
+            loadAll(new JarClassLoader(jar, ClassLoadingBenchmark.class.getClassLoader(), true), classes, threads, serialized);
+        return (long) classes.size() * rounds * 1_000_000_000L / (System.nanoTime() - start);
+    }
+
+    static void loadAll(final ClassLoader cl, final List<String> classes, int threads, final boolean serialized) throws Exception {
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Throwable[] error = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * classes.size() / threads;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < classes.size(); i++) {
+                            final String name = classes.get((offset + i) % classes.size());
+                            if (serialized) {
+                                synchronized (cl) {
+                                    cl.loadClass(name);
+                                }
+                            } else
+                                cl.loadClass(name);
+                        }
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        if (error[0] != null)
+            throw new AssertionError(error[0]);
+    }
+
+    static List<String> classNames(byte[] jar) throws Exception {
+        final List<String> classes = new ArrayList<>();
+        try (JarInputStream jis = new JarInputStream(new ByteArrayInputStream(jar))) {
+            for (JarEntry e; (e = jis.getNextJarEntry()) != null;) {
+                if (e.getName().endsWith(".class"))
+                    classes.add(e.getName().substring(0, e.getName().length() - ".class".length()).replace('/', '.'));
+            }
+        }
+        return classes;
+    }
+}
@@ -22,11 +22,14 @@ import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -36,6 +39,11 @@ import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -303,6 +311,62 @@ public class JarTest {
         assertEquals("1234", man2.getMainAttributes().getValue("Foo"));
     }
 
+    @Test
+    public void testAddZipRaw() throws Exception {
+        byte[] stored = "I am stored!\n".getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(stored);
+
+        Path myZip = Files.createTempFile("zip", ".zip");
+        try {
+            try (OutputStream os = Files.newOutputStream(myZip)) {
+                os.write("I'm the prefix!\n".getBytes(UTF_8));
+                ZipOutputStream zos = new ZipOutputStream(os);
+                ZipEntry entry = new ZipEntry("stored.txt");
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(stored.length);
+                entry.setCrc(crc.getValue());
+                zos.putNextEntry(entry);
+                zos.write(stored);
+                zos.putNextEntry(new ZipEntry("dir/bar.txt")); // sizes follow the data
+                zos.write("I am bar!\n".getBytes(UTF_8));
+                zos.putNextEntry(new ZipEntry("dir/baz.txt"));
+                zos.write("I am baz!\n".getBytes(UTF_8));
+                zos.close();
+            }
+
+            ByteArrayOutputStream res = new Jar()
+                    .setAttribute("Foo", "1234")
+                    .addEntries(Paths.get("d1"), myZip, Jar.notMatches("d1/dir/baz\\.txt"))
+                    .write(new ByteArrayOutputStream());
+
+            assertEquals("I am stored!\n", getEntryAsString(toInput(res), Paths.get("d1", "stored.txt"), UTF_8));
+            assertEquals("I am bar!\n", getEntryAsString(toInput(res), Paths.get("d1", "dir", "bar.txt"), UTF_8));
+            assertEquals(null, getEntry(toInput(res), Paths.get("d1", "dir", "baz.txt")));
+            assertEquals("1234", toInput(res).getManifest().getMainAttributes().getValue("Foo"));
+
+            Path out = Files.createTempFile("out", ".jar");
+            try (ZipFile src = new ZipFile(myZip.toFile())) {
+                Files.write(out, res.toByteArray());
+                try (JarFile jar = new JarFile(out.toFile())) {
+                    assertEquals(3, jar.size()); // the manifest, stored.txt and bar.txt
+                    for (String name : Arrays.asList("stored.txt", "dir/bar.txt")) {
+                        ZipEntry s = src.getEntry(name);
+                        ZipEntry d = jar.getEntry("d1/" + name);
+                        assertEquals(s.getMethod(), d.getMethod());
+                        assertEquals(s.getCrc(), d.getCrc());
+                        assertEquals(s.getSize(), d.getSize());
+                        assertEquals(s.getCompressedSize(), d.getCompressedSize());
+                    }
+                }
+            } finally {
+                Files.delete(out);
+            }
+        } finally {
+            Files.delete(myZip);
+        }
+    }
+
     @Test
     public void testAddPackage() throws Exception {
         final Class clazz = JarClassLoader.class;
@@ -420,6 +484,242 @@ public class JarTest {
         assertEquals("I'm the prefix!", firstLine);
     }
 
+    @Test
+    public void testLargeJar() throws Exception {
+        FileSystem fs = Jimfs.newFileSystem();
+        Path jarPath = fs.getPath("test.jar");
+
+        byte[] data = new byte[3 * 1024 * 1024]; // incompressible, so the JAR is larger than the buffer kept in memory
+        new java.util.Random(1).nextBytes(data);
+        List<Path> tempFiles = getTempJarFiles();
+
+        Jar jar = new Jar()
+                .setAttribute("Foo", "1234")
+                .setJarPrefix("I'm the prefix!")
+                .addEntry("a.dat", data)
+                .addEntry("b.dat", data)
+                .addEntry(Paths.get("foo.txt"), Jar.toInputStream("I am foo!\n", UTF_8));
+        assertEquals(tempFiles.size() + 1, getTempJarFiles().size());
+        jar.write(jarPath);
+        assertEquals(tempFiles, getTempJarFiles());
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(jarPath), UTF_8), 10);
+        assertEquals("I'm the prefix!", reader.readLine());
+        assertEquals("1234", new Jar(jarPath).getAttribute("Foo"));
+        assertArrayEquals(data, getEntry(new co.paralleluniverse.common.JarInputStream(Files.newInputStream(jarPath)), Paths.get("b.dat")));
+        assertEquals("I am foo!\n", getEntryAsString(new co.paralleluniverse.common.JarInputStream(Files.newInputStream(jarPath)), Paths.get("foo.txt"), UTF_8));
+
+        Path jarPath2 = fs.getPath("test2.jar");
+        jar.write(jarPath2);
+        assertArrayEquals(Files.readAllBytes(jarPath), Files.readAllBytes(jarPath2));
+        assertArrayEquals(Files.readAllBytes(jarPath), jar.toByteArray());
+        jar.write(jarPath);
+        assertArrayEquals(Files.readAllBytes(jarPath2), Files.readAllBytes(jarPath));
+
+        jar.release();
+        try {
+            jar.write(fs.getPath("test3.jar"));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        Jar jar2 = new Jar().addEntry("a.dat", data).addEntry("b.dat", data);
+        assertArrayEquals(data, getEntry(new co.paralleluniverse.common.JarInputStream(new ByteArrayInputStream(jar2.toByteArray())), Paths.get("b.dat")));
+        assertEquals(tempFiles.size() + 1, getTempJarFiles().size());
+        jar2.release();
+        assertEquals(tempFiles, getTempJarFiles());
+    }
+
+    @Test
+    public void testParallelCompression() throws Exception {
+        ByteArrayOutputStream myZip = new Jar()
+                .addEntry(Paths.get("foo.txt"), Jar.toInputStream("I am foo!\n", UTF_8))
+                .addEntry(Paths.get("dir", "bar.txt"), Jar.toInputStream("I am bar!\n", UTF_8))
+                .addEntry(Paths.get("dir", "baz.txt"), Jar.toInputStream("I am baz!\n", UTF_8))
+                .write(new ByteArrayOutputStream());
+
+        byte[] large = new byte[3 * 1024 * 1024]; // deflated as it's written
+        for (int i = 0; i < large.length; i++)
+            large[i] = (byte) (i % 251);
+
+        Path sequential = Files.createTempFile("sequential", ".jar");
+        Path parallel = Files.createTempFile("parallel", ".jar");
+        try {
+            for (Path p : Arrays.asList(sequential, parallel)) {
+                Jar jar = new Jar()
+                        .setAttribute("Foo", "1234")
+                        .setJarPrefix("I'm the prefix!")
+                        .setParallelism(p == parallel ? 4 : 0);
+                for (int i = 0; i < 100; i++)
+                    jar.addEntry("x/" + i + ".txt", Jar.toInputStream("I am " + i + "\n", UTF_8));
+                jar.addEntry("large.dat", large)
+                        .addEntries((Path) null, toInput(myZip), Jar.notMatches("dir/baz\\.txt"))
+                        .write(p);
+            }
+
+            List<String> names = new ArrayList<>();
+            try (JarInputStream jis = new co.paralleluniverse.common.JarInputStream(Files.newInputStream(parallel))) {
+                assertEquals("1234", jis.getManifest().getMainAttributes().getValue("Foo"));
+                for (JarEntry entry; (entry = jis.getNextJarEntry()) != null;)
+                    names.add(entry.getName());
+            }
+            assertEquals(103, names.size());
+            assertEquals("x/0.txt", names.get(0));
+            assertEquals("large.dat", names.get(100));
+            assertEquals(Arrays.asList("foo.txt", "dir/bar.txt"), names.subList(101, 103));
+
+            try (JarFile s = new JarFile(sequential.toFile()); JarFile p = new JarFile(parallel.toFile())) {
+                assertEquals("1234", p.getManifest().getMainAttributes().getValue("Foo"));
+                assertEquals(s.size(), p.size());
+                for (JarEntry entry : Collections.list(s.entries())) {
+                    final JarEntry pe = p.getJarEntry(entry.getName());
+                    assertEquals(entry.getSize(), pe.getSize());
+                    assertEquals(entry.getCrc(), pe.getCrc());
+                }
+                assertArrayEquals(large, getEntry(p, Paths.get("large.dat")));
+                assertEquals("I am 42\n", new String(getEntry(p, Paths.get("x", "42.txt")), UTF_8));
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(parallel), UTF_8), 10);
+            assertEquals("I'm the prefix!", reader.readLine());
+
+            try {
+                new Jar().setParallelism(2).addEntry("a.txt", new byte[1]).addEntry("a.txt", new byte[1]);
+                fail();
+            } catch (ZipException e) {
+                assertTrue(e.getMessage().startsWith("duplicate entry"));
+            }
+        } finally {
+            Files.delete(sequential);
+            Files.delete(parallel);
+        }
+    }
+
+    @Test
+    public void testParallelCompressionWorkers() throws Exception {
+        awaitCompressorThreads();
+
+        Jar jar = new Jar().setParallelism(4).setAttribute("Foo", "1234");
+        assertEquals(0, getCompressorThreads().size()); // started with the first entry
+
+        for (int i = 0; i < 20; i++)
+            jar.addEntry("x/" + i + ".txt", Jar.toInputStream("I am " + i + "\n", UTF_8));
+        try {
+            jar.addEntry("x/0.txt", new byte[1]);
+            fail();
+        } catch (ZipException e) {
+            assertTrue(e.getMessage().startsWith("duplicate entry"));
+        }
+        awaitCompressorThreads(); // the pool is shut down
+        assertEquals(0, getCompressorThreads().size());
+
+        // the entries submitted before the failure are still written
+        jar.addEntry("y.txt", Jar.toInputStream("I am y\n", UTF_8));
+        ByteArrayOutputStream out = jar.write(new ByteArrayOutputStream());
+        List<String> names = new ArrayList<>();
+        try (JarInputStream jis = new co.paralleluniverse.common.JarInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (JarEntry entry; (entry = jis.getNextJarEntry()) != null;)
+                names.add(entry.getName());
+        }
+        assertEquals(21, names.size());
+        assertEquals("x/19.txt", names.get(19));
+        assertEquals("y.txt", names.get(20));
+    }
+
+    private static List<Thread> getCompressorThreads() {
+        List<Thread> threads = new ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("jar-compressor-") && t.isAlive())
+                threads.add(t);
+        }
+        return threads;
+    }
+
+    private static void awaitCompressorThreads() throws InterruptedException {
+        for (Thread t : getCompressorThreads())
+            t.join(10000);
+    }
+
+    @Test
+    public void testManyEntries() throws Exception {
+        Path zip64 = Files.createTempFile("zip64", ".jar");
+        Path copy = Files.createTempFile("copy", ".jar");
+        List<Path> tempFiles = getTempJarFiles();
+        try {
+            Jar jar = new Jar().setAttribute("Foo", "1234");
+            for (int i = 0; i < 70000; i++) // more than fit in the END record
+                jar.addEntry("x/" + i, new byte[]{(byte) i});
+            jar.write(zip64);
+
+            try (JarFile jf = new JarFile(zip64.toFile())) {
+                assertEquals(70001, jf.size());
+                assertEquals("1234", jf.getManifest().getMainAttributes().getValue("Foo"));
+                assertArrayEquals(new byte[]{(byte) 69999}, getEntry(jf, Paths.get("x", "69999")));
+            }
+            int count = 0;
+            try (JarInputStream jis = new JarInputStream(Files.newInputStream(zip64))) {
+                for (JarEntry entry; (entry = jis.getNextJarEntry()) != null;)
+                    count++;
+            }
+            assertEquals(70000, count);
+
+            new Jar().addEntries((Path) null, zip64).write(copy); // a ZIP64 file isn't copied as it is
+            try (JarFile jf = new JarFile(copy.toFile())) {
+                assertEquals(70001, jf.size());
+                assertArrayEquals(new byte[]{(byte) 69999}, getEntry(jf, Paths.get("x", "69999")));
+            }
+            assertEquals(tempFiles, getTempJarFiles());
+        } finally {
+            Files.delete(zip64);
+            Files.delete(copy);
+        }
+    }
+
+    @Test
+    public void testStartupLayout() throws Exception {
+        ByteArrayOutputStream nested = new Jar()
+                .addEntry(Paths.get("foo.txt"), Jar.toInputStream("I am foo!\n", UTF_8))
+                .write(new ByteArrayOutputStream());
+
+        for (int threads : new int[]{0, 4}) {
+            Path out = Files.createTempFile("startup", ".jar");
+            try {
+                new Jar()
+                        .setAttribute("Main-Class", "Capsule")
+                        .setAttribute("Caplets", "com.acme.MyCaplet com.acme:caplet:1.0")
+                        .setJarPrefix("I'm the prefix!")
+                        .setParallelism(threads)
+                        .setStartupLayout(true)
+                        .addEntry("lib/a.jar", nested.toByteArray())
+                        .addEntry("a.txt", Jar.toInputStream("I am a!\n", UTF_8))
+                        .addEntry("com/acme/Other.class", new byte[]{1, 2, 3})
+                        .addEntry("com/acme/MyCaplet.class", new byte[]{4, 5, 6})
+                        .addEntry("Capsule.class", new byte[]{7, 8, 9})
+                        .addEntry("com/acme/MyCaplet$1.class", new byte[]{10})
+                        .addEntry("b.txt", Jar.toInputStream("I am b!\n", UTF_8))
+                        .write(out);
+
+                List<String> names = new ArrayList<>();
+                try (JarInputStream jis = new co.paralleluniverse.common.JarInputStream(Files.newInputStream(out))) {
+                    assertEquals("Capsule", jis.getManifest().getMainAttributes().getValue("Main-Class"));
+                    for (JarEntry entry; (entry = jis.getNextJarEntry()) != null;)
+                        names.add(entry.getName());
+                }
+                assertEquals(Arrays.asList("com/acme/MyCaplet.class", "Capsule.class", "com/acme/MyCaplet$1.class",
+                        "lib/a.jar", "a.txt", "com/acme/Other.class", "b.txt"), names);
+
+                try (JarFile jar = new JarFile(out.toFile())) {
+                    assertEquals(JarEntry.STORED, jar.getJarEntry("lib/a.jar").getMethod());
+                    assertEquals(JarEntry.DEFLATED, jar.getJarEntry("a.txt").getMethod());
+                    assertArrayEquals(nested.toByteArray(), getEntry(jar, Paths.get("lib", "a.jar")));
+                    assertArrayEquals(new byte[]{4, 5, 6}, getEntry(jar, Paths.get("com", "acme", "MyCaplet.class")));
+                    assertEquals("I am b!\n", new String(getEntry(jar, Paths.get("b.txt")), UTF_8));
+                }
+            } finally {
+                Files.delete(out);
+            }
+        }
+    }
+
     //<editor-fold defaultstate="collapsed" desc="Utilities">
     /////////// Utilities ///////////////////////////////////
     private static JarInputStream toInput(JarOutputStream jos) {
@@ -459,6 +759,16 @@ public class JarTest {
         return map;
     }
 
+    private static List<Path> getTempJarFiles() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(System.getProperty("java.io.tmpdir")), "jar-*.tmp")) {
+            for (Path f : ds)
+                files.add(f);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
     private static String getEntryAsString(JarInputStream jar, Path entry, Charset charset) throws IOException {
         byte[] buffer = getEntry(jar, entry);
         return buffer != null ? new String(buffer, charset) : null;
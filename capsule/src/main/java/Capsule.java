@@ -8,15 +8,19 @@
  */
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
@@ -27,37 +31,57 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.ProtocolFamily;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Permission;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -70,6 +94,8 @@ import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
@@ -78,14 +104,36 @@ import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.Properties;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.RandomAccess;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -175,6 +223,7 @@ public class Capsule implements Runnable, InvocationHandler {
     private static final long START = System.nanoTime();
     private static final Map<String, Object[]> OPTIONS = new LinkedHashMap<>(20);
     private static final Map<String, Object[]> ATTRIBS = new LinkedHashMap<>(60);
+    private static final Set<String> UNCACHED_ATTRIBS = new HashSet<>();
     private static Properties PROPERTIES = new Properties(System.getProperties());
 
     // standard values
@@ -227,8 +276,27 @@ public class Capsule implements Runnable, InvocationHandler {
     private static final String CAPSULE_PROP_PREFIX = "capsule.";
     private static final String CACHE_DEFAULT_NAME = "capsule";
     private static final String APP_CACHE_NAME = "apps";
+    private static final String JVM_REGISTRY_NAME = "jvms";
+    private static final String STORE_CACHE_NAME = "store";
+    private static final String STORE_TMP_SUFFIX = ".tmp";
+    private static final long STORE_TMP_GRACE = 60 * 60 * 1000; // a temporary store file younger than this may still be written
+    private static final int STORE_ATTEMPTS = 3;
     private static final String LOCK_FILE_NAME = ".lock";
+    private static final String USE_LOCK_FILE_NAME = ".use";
+    private static final String DETACHED_FILE_NAME = ".detached";
     private static final String TIMESTAMP_FILE_NAME = ".extracted";
+    private static final String LAUNCH_PLAN_PREFIX = ".launch-";
+    private static final int LAUNCH_PLAN_VERSION = 1;
+    private static final String CDS_ARCHIVE_PREFIX = ".cds-";
+    private static final String CDS_DUMP_ARG = "-XX:ArchiveClassesAtExit=";
+    private static final String EXTRACTED_ENTRIES_FILE_NAME = ".extracted-entries";
+    private static final int DEFAULT_EXTRACT_PARALLELISM = 8;
+    private static final long DEFAULT_CACHE_GRACE = 24; // hours
+    private static final int JAVA_VERSION_PROBE_PARALLELISM = 4;
+    private static final long JAVA_VERSION_PROBE_TIMEOUT = 5000; // ms
+    private static final String FRESHNESS_MTIME = "mtime";
+    private static final String FRESHNESS_FINGERPRINT = "fingerprint";
+    private static final String FRESHNESS_HASH = "hash";
     private static final String CACHE_NONE = "NONE";
     private static final String SEPARATOR_DOT = "\\.";
     private static final Path WINDOWS_PROGRAM_FILES_1 = Paths.get("C:", "Program Files");
@@ -255,26 +323,52 @@ public class Capsule implements Runnable, InvocationHandler {
     private static final int ATTRIB_MODAL = 2;
     private static final int ATTRIB_DESC = 3;
 
+    // JMX proxy stats
+    private static final int JMX_CALLS = 0;
+    private static final int JMX_REQUESTS = 1;
+    private static final int JMX_CACHE_HITS = 2;
+    private static final int JMX_NANOS = 3;
+    private static final int JMX_MAX_NANOS = 4;
+
     // messages
     private static final int MESSAGE_EXIT = 1;
     private static final int MESSAGE_START_JMX = 2;
     private static final int MESSAGE_JMX_URL = 3;
+    private static final int COMM_MAGIC = 0x43415053; // "CAPS"
+    private static final int COMM_VERSION = 1;
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    private static final int MAX_UNIX_SOCKET_PATH = 100; // sun_path is 104-108 bytes, depending on the OS
 
     // properties
     private static final String PROP_VERSION = OPTION("capsule.version", "false", "printVersion", "Prints the capsule and application versions.");
     private static final String PROP_MODES = OPTION("capsule.modes", "false", "printModes", "Prints all available capsule modes.");
     private static final String PROP_PRINT_JRES = OPTION("capsule.jvms", "false", "printJVMs", "Prints a list of all JVM installations found.");
+    private static final String PROP_REBUILD_JRES = OPTION("capsule.jvms.rebuild", "false", "rebuildJVMs", "Rescans the JVM installations, rebuilds the registry kept in the cache, and prints them.");
     private static final String PROP_MERGE = OPTION("capsule.merge", null, "mergeCapsules", true, "Merges a wrapper capsule with a wrapped capsule.");
     private static final String PROP_HELP = OPTION("capsule.help", "false", "printHelp", "Prints this help message.");
     private static final String PROP_INTROSPECT = OPTION("capsule.introspect", "false", "introspect", "Prints the values of all attributes.");
+    private static final String PROP_CACHE_REPORT = OPTION("capsule.cache.report", "false", "printCacheUsage", "Prints the disk usage of the app caches.");
+    private static final String PROP_CACHE_PRUNE = OPTION("capsule.cache.prune", "false", "pruneCache", "Evicts the least recently used app caches that aren't in use down to the quota (or all of them, if no quota is set), and removes files no longer used by any app from the shared store.");
     private static final String PROP_MODE = OPTION("capsule.mode", null, null, "Picks the capsule mode to run.");
     private static final String PROP_RESET = OPTION("capsule.reset", "false", null, "Resets the capsule cache before launching. The capsule to be re-extracted (if applicable), and other possibly cached files will be recreated.");
+    private static final String PROP_CACHE_FRESHNESS = OPTION("capsule.cache.freshness", FRESHNESS_FINGERPRINT, null, "Picks how the app cache is checked against the capsule JAR. Must be one of mtime (the JAR's modification time), fingerprint (the CRCs and sizes of the JAR's entries), or hash (a hash of the entire JAR).");
+    private static final String PROP_INCREMENTAL = OPTION("capsule.cache.incremental", "false", null, "When the app cache is stale, re-extracts only the files that have changed in the capsule rather than the whole capsule.");
+    private static final String PROP_SHARED_STORE = OPTION("capsule.cache.shared", "false", null, "Keeps the JARs extracted from capsules in a store shared by all apps, keyed by content, and links them into the app cache, so that a JAR common to several apps or versions is only stored once. The linked JARs are read-only.");
+    private static final String PROP_CACHE_QUOTA = OPTION("capsule.cache.quota", null, null, "The maximum total size of the app caches, in bytes (or with a K, M or G suffix), where a JAR shared by several app caches through capsule.cache.shared is counted once. When exceeded, the least recently used app caches that aren't in use are evicted. The app cache of an application launched through the trampoline or with capsule.exec is only protected for capsule.cache.grace hours, as the capsule's JVM exits when the application starts.");
+    private static final String PROP_CACHE_GRACE = OPTION("capsule.cache.grace", Long.toString(DEFAULT_CACHE_GRACE), null, "The number of hours after an application is launched through the trampoline (capsule.trampoline) or with capsule.exec during which its app cache isn't evicted.");
+    private static final String PROP_EXTRACT_PARALLELISM = OPTION("capsule.extract.parallelism", null, null, "The number of threads extracting the capsule into the app cache (by default, the number of available processors, up to " + DEFAULT_EXTRACT_PARALLELISM + ").");
+    private static final String PROP_LAUNCH_CACHE = OPTION("capsule.launch.cache", "false", null, "Reuses the command line, environment and working directory computed when the capsule was last launched the same way (same capsule, mode, caplets, system properties, arguments, environment and installed JVMs), skipping their resolution. Should not be used with caplets that have side effects when preparing the launch.");
+    private static final String PROP_EXEC = OPTION("capsule.exec", "false", null, "Writes a script that runs the application in place of the shell running it, and prints its path, so that the capsule's JVM doesn't stay resident (see capsule/exec-execheader.sh). As the capsule's JVM exits before the application starts, the app cache isn't protected from eviction (see capsule.cache.quota and capsule.cache.prune) for as long as the application runs, but only for capsule.cache.grace hours after it is launched.");
     private static final String PROP_LOG_LEVEL = OPTION("capsule.log", "quiet", null, "Picks a log level. Must be one of none, quiet, verbose, or debug.");
     private static final String PROP_CAPSULE_JAVA_HOME = OPTION("capsule.java.home", null, null, "Sets the location of the Java home (JVM installation directory) to use; If \'current\' forces the use of the JVM that launched the capsule.");
     private static final String PROP_CAPSULE_JAVA_CMD = OPTION("capsule.java.cmd", null, null, "Sets the path to the Java executable to use.");
     private static final String PROP_JVM_ARGS = OPTION("capsule.jvm.args", null, null, "Sets additional JVM arguments to use when running the application.");
+    private static final String PROP_JMX_CACHE_TTL = OPTION("capsule.jmx.cache.ttl", "0", null, "The time, in milliseconds, for which MBean info and attribute values proxied from the application are reused; reading an attribute fetches all of the MBean's readable attributes in a single request (so reading a single attribute may be as costly as reading all of them, which matters for MBeans with expensive attributes, such as ThreadMXBean). 0 disables caching (except of MBean info declared immutable).");
+    private static final String PROP_JMX_ASYNC = OPTION("capsule.jmx.async", "false", null, "When set, reading attributes whose cached values (see capsule.jmx.cache.ttl) have expired returns the old values immediately, and refreshes them in the background.");
+    private static final String PROP_COMM_UNIX = OPTION("capsule.comm.unix", "false", null, "Connects the capsule and the application's agent over a Unix domain socket in the cache directory rather than a TCP port, if both JVMs support it (Java 16+); otherwise, TCP is used.");
     private static final String PROP_PORT = "capsule.port";
     private static final String PROP_ADDRESS = "capsule.address";
+    private static final String PROP_SOCKET = "capsule.socket";
     private static final String PROP_TRAMPOLINE = "capsule.trampoline";
     private static final String PROP_PROFILE = "capsule.profile";
 
@@ -307,6 +401,7 @@ public class Capsule implements Runnable, InvocationHandler {
     protected static final Entry<String, List<String>> ATTR_JVM_ARGS = ATTRIBUTE("JVM-Args", T_LIST(T_STRING()), null, true, "A list of JVM arguments that will be used to launch the application's Java process");
     protected static final Entry<String, Map<String, String>> ATTR_SYSTEM_PROPERTIES = ATTRIBUTE("System-Properties", T_MAP(T_STRING(), T_STRING(), ""), null, true, "A list of system properties that will be defined in the applications JVM; formatted \"prop=value\" or \"prop\"");
     protected static final Entry<String, List<Object>> ATTR_APP_CLASS_PATH = ATTRIBUTE("App-Class-Path", T_LIST(T_FILE()), null, true, "A list of JARs, relative to the capsule root, that will be put on the application's classpath, in the order they are listed");
+    protected static final Entry<String, Boolean> ATTR_CDS = ATTRIBUTE("Class-Data-Sharing", T_BOOL(), false, true, "Whether the classes loaded by the application are dumped into a class-data sharing archive in the app cache on its first run, and loaded from it on subsequent runs, to speed up startup; requires an extracted capsule and Java 13+, and is ignored otherwise");
     protected static final Entry<String, Boolean> ATTR_CAPSULE_IN_CLASS_PATH = ATTRIBUTE("Capsule-In-Class-Path", T_BOOL(), true, true, "Whether or not the capsule JAR itself is on the application's classpath");
     protected static final Entry<String, List<Object>> ATTR_BOOT_CLASS_PATH = ATTRIBUTE("Boot-Class-Path", T_LIST(T_FILE()), null, true, "A list of JARs, dependencies, and/or directories, relative to the capsule root, that will be used as the application's boot classpath");
     protected static final Entry<String, List<Object>> ATTR_BOOT_CLASS_PATH_A = ATTRIBUTE("Boot-Class-Path-A", T_LIST(T_FILE()), null, true, "A list of JARs dependencies, and/or directories, relative to the capsule root, that will be appended to the applications default boot classpath");
@@ -663,13 +758,16 @@ public class Capsule implements Runnable, InvocationHandler {
     //</editor-fold>
 
     private static Map<String, List<Path>> JAVA_HOMES; // an optimization trick (can be injected by CapsuleLauncher)
-    private final Map<String, String> threads = new HashMap<>();
+    private final Map<String, String> threads = new ConcurrentHashMap<>();
 
     // fields marked /*final*/ are effectively final after finalizeCapsule
     private /*final*/ Capsule oc;  // first in chain
     private /*final*/ Capsule cc;  // last in chain
     private /*final*/ Capsule sup; // previous in chain
     private /*final*/ Capsule _ct; // a temp var
+    private Set<String> overridden; // names of Capsule's methods overridden by this caplet's class (and its superclasses) below Capsule
+    private String superCall;       // the hook that the next caplet in the chain has just dispatched to this one
+    private Map<String, Object> attributeCache;
 
     private final boolean wrapper;
     private final Manifest manifest;     // never null
@@ -685,8 +783,10 @@ public class Capsule implements Runnable, InvocationHandler {
     private Path writableAppCache;
 
     private boolean plainCache;
-    private boolean cacheUpToDate;
+    private String jarFingerprint;
+    private Object[] extraction; // {jar, index, entry names, dir, next (AtomicInteger), first error (AtomicReference<Throwable>), shared store (or null)}
     private FileLock appCacheLock;
+    private FileLock appCacheUseLock;
 
     private int lifecycleStage;
     private String appArtifactMainClass;
@@ -697,6 +797,16 @@ public class Capsule implements Runnable, InvocationHandler {
     private boolean agentCalled;
     private MBeanServer origMBeanServer;
     private MBeanServerConnection jmxConnection;
+    private long jmxCacheTTL;
+    private boolean jmxAsync;
+    private long jmxConnectTime;
+    private final Map<ObjectName, Object[]> jmxInfo = new ConcurrentHashMap<>(); // {expiration, MBeanInfo}
+    private final ConcurrentMap<ObjectName, Object[]> jmxAttributes = new ConcurrentHashMap<>(); // {expiration, Map<String, Object>}
+    private final Map<ObjectName, Long> jmxGenerations = new ConcurrentHashMap<>(); // changed whenever an MBean's cached attributes are invalidated
+    private final BlockingQueue<ObjectName> jmxRefreshQueue = new LinkedBlockingQueue<>();
+    private final Set<ObjectName> jmxRefreshPending = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+    private final AtomicLongArray jmxStats = new AtomicLongArray(5);
+    private static final Map<Method, Object> MBEAN_CONNECTION_METHODS = new ConcurrentHashMap<>();
     // Error reporting
     private static final ThreadLocal<String> contextType_ = new ThreadLocal<>();
     private static final ThreadLocal<String> contextKey_ = new ThreadLocal<>();
@@ -706,8 +816,12 @@ public class Capsule implements Runnable, InvocationHandler {
     private Object socket;
     private InetAddress address;
     private int port;
-    private ObjectInput socketInput;
-    private ObjectOutput socketOutput;
+    private Path socketPath;
+    private ByteArrayOutputStream socketBuffer;
+    private DataInputStream socketInput;
+    private DataOutputStream socketOutput;
+    private final AtomicInteger pendingSends = new AtomicInteger();
+    private final AtomicInteger messageIds = new AtomicInteger();
 
     //<editor-fold defaultstate="collapsed" desc="Constructors">
     /////////// Constructors ///////////////////////////////////
@@ -738,8 +852,8 @@ public class Capsule implements Runnable, InvocationHandler {
         this.jarFile = toAbsolutePath(jarFile);
 
         final long start = System.nanoTime(); // can't use clock before log level is set
-        try (JarInputStream jis = openJarInputStream(jarFile)) {
-            this.manifest = jis.getManifest();
+        try {
+            this.manifest = readManifest(jarFile);
             if (manifest == null)
                 throw new RuntimeException("Capsule " + jarFile + " does not have a manifest");
         } catch (IOException e) {
@@ -801,27 +915,23 @@ public class Capsule implements Runnable, InvocationHandler {
         }
 
         final Manifest man;
-        boolean isCapsule = false;
+        final boolean isCapsule;
         final long start = clock();
-        try (JarInputStream jis = openJarInputStream(jar)) {
-            man = jis.getManifest();
+        try {
+            man = readManifest(jar);
             if (man == null || man.getMainAttributes().getValue(ATTR_MAIN_CLASS) == null)
                 throw new IllegalArgumentException(jar + " is not a capsule or an executable JAR");
 
-            for (JarEntry entry; (entry = jis.getNextJarEntry()) != null;) {
-                if (entry.getName().equals(Capsule.class.getName() + ".class")) {
-                    isCapsule = true;
-                    break;
-                }
-            }
+            isCapsule = hasEntry(jar, Capsule.class.getName() + ".class");
         } catch (IOException e) {
             throw new RuntimeException("Could not read JAR file " + jar, e);
         }
         time("Read JAR in setTarget", start);
 
-        if (!isCapsule)
+        if (!isCapsule) {
             oc.nonCapsuleTarget = target;
-        else {
+            clearAttributeCache();
+        } else {
             log(LOG_VERBOSE, "Wrapping capsule " + jar);
             insertAfter(loadTargetCapsule(cc.getClass().getClassLoader(), jar).cc);
         }
@@ -833,7 +943,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * Called once the capsule construction has been completed (after loading of wrapped capsule, if applicable).
      */
     protected void finalizeCapsule() {
-        if ((_ct = getCallTarget(Capsule.class)) != null)
+        if ((_ct = getCallTarget("finalizeCapsule")) != null)
             _ct.finalizeCapsule();
         else
             finalizeCapsule0();
@@ -844,6 +954,7 @@ public class Capsule implements Runnable, InvocationHandler {
         validateManifest(oc.manifest);
         setLogLevel(chooseLogLevel());
         oc.mode = chooseMode1();
+        clearAttributeCache();
         initAppId();
 
         if (getAppId() == null && !(hasAttribute(ATTR_APP_ARTIFACT) && !isDependency(getAttribute(ATTR_APP_ARTIFACT))))
@@ -894,7 +1005,9 @@ public class Capsule implements Runnable, InvocationHandler {
 
     // Called by tests
     private static void clearCaches() {
-        jarEntriesCache.clear();
+        synchronized (jarIndexCache) {
+            jarIndexCache.clear();
+        }
     }
     //</editor-fold>
 
@@ -929,6 +1042,7 @@ public class Capsule implements Runnable, InvocationHandler {
             this.oc = sup.oc;
             for (Capsule c = cc; c != this; c = c.sup)
                 c.oc = oc;
+            clearAttributeCache();
             if (sup.cc == sup) { // I'm last
                 for (Capsule c = sup; c != null; c = c.sup)
                     c.cc = cc;
@@ -1025,6 +1139,58 @@ public class Capsule implements Runnable, InvocationHandler {
 
         return target != null ? target.sup(clazz) : null;
     }
+
+    private Capsule getCallTarget(String hook) {
+        /*
+         * The same as getCallTarget(Capsule.class), only without inspecting the stack (which is expensive, and hooks like lookup0 are called often).
+         * Only a chain head (the first caplet, or the first caplet in a wrapper capsule) needs to tell a direct call from a super call.
+         * A call to one of Capsule's hooks reaches the head's Capsule implementation either through super.hook() in the head's own class,
+         * or through the next caplet dispatching the hook to it (in which case it has marked it with superCall just before the call),
+         * and otherwise it is a direct call.
+         */
+        final Capsule target;
+        if (isChainHead()) {
+            if (hook.equals(superCall) || overrides(hook)) {
+                superCall = null;
+                target = sup;
+            } else
+                target = cc;
+        } else
+            target = sup;
+
+        if (target != null && target.isChainHead() && !target.overrides(hook))
+            target.superCall = hook; // consumed at once by the target's Capsule.hook, as target doesn't override it
+        return target;
+    }
+
+    private boolean isChainHead() {
+        return (sup == null || this.jarFile != sup.jarFile) && cc != this; // the jarFile condition tests if this is the first caplet in a wrapper capsule
+    }
+
+    private boolean overrides(String method) {
+        if (overridden == null) {
+            final Set<String> ms = new HashSet<>();
+            for (Class<?> c = getClass(); c != null && c != Capsule.class; c = c.getSuperclass()) {
+                for (Method m : c.getDeclaredMethods()) {
+                    if (overridesCapsuleMethod(m))
+                        ms.add(m.getName()); // hooks aren't overloaded, so the name identifies the hook
+                }
+            }
+            this.overridden = ms;
+        }
+        return overridden.contains(method);
+    }
+
+    private static boolean overridesCapsuleMethod(Method m) {
+        if (Modifier.isPrivate(m.getModifiers()) || Modifier.isStatic(m.getModifiers()))
+            return false;
+        try {
+            final int mods = Capsule.class.getDeclaredMethod(m.getName(), m.getParameterTypes()).getModifiers();
+            return !Modifier.isPrivate(mods) && !Modifier.isStatic(mods) && !Modifier.isFinal(mods);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="Properties">
@@ -1176,7 +1342,7 @@ public class Capsule implements Runnable, InvocationHandler {
     }
 
     void printJVMs(List<String> args) {
-        final Map<String, List<Path>> jres = getJavaHomes();
+        final Map<String, List<Path>> jres = loadJavaHomes(getJvmRegistry());
         if (jres == null)
             println("No detected Java installations");
         else {
@@ -1190,6 +1356,45 @@ public class Capsule implements Runnable, InvocationHandler {
         STDOUT.println(LOG_PREFIX + "selected " + (jhome != null ? jhome : (getProperty(PROP_JAVA_HOME) + " (current)")));
     }
 
+    void printCacheUsage(List<String> args) {
+        try {
+            final Map<Object, long[]> files = new HashMap<>();
+            final Map<Path, long[]> caches = getAppCaches(files, null);
+            STDOUT.println(LOG_PREFIX + "App caches in " + getCacheDir().resolve(APP_CACHE_NAME) + " (least recently used first; not counting files shared with other app caches):");
+            for (Map.Entry<Path, long[]> c : caches.entrySet())
+                STDOUT.println(c.getValue()[1] + "\t" + FileTime.fromMillis(c.getValue()[0]) + "\t" + c.getKey().getFileName());
+            long total = 0;
+            for (long[] file : files.values())
+                total += file[0];
+            STDOUT.println(LOG_PREFIX + "Total (including the shared store): " + total + " bytes" + (getCacheQuota() >= 0 ? " (quota: " + getCacheQuota() + " bytes)" : ""));
+            final Path store = getCacheDir().resolve(STORE_CACHE_NAME);
+            if (Files.isDirectory(store))
+                STDOUT.println(LOG_PREFIX + "Shared store " + store + ": " + size(store) + " bytes");
+        } catch (IOException e) {
+            throw rethrow(e);
+        }
+    }
+
+    void pruneCache(List<String> args) {
+        try {
+            evictAppCaches(Math.max(getCacheQuota(), 0), getAppDir());
+            printCacheUsage(args);
+        } catch (IOException e) {
+            throw rethrow(e);
+        }
+    }
+
+    void rebuildJVMs(List<String> args) {
+        JAVA_HOMES = null;
+        try {
+            if (getJvmRegistry() != null)
+                Files.deleteIfExists(getJvmRegistry());
+        } catch (IOException e) {
+            throw rethrow(e);
+        }
+        printJVMs(args);
+    }
+
     void mergeCapsules(List<String> args) {
         if (!isWrapperCapsule())
             throw new IllegalStateException("This is not a wrapper capsule");
@@ -1322,10 +1527,15 @@ public class Capsule implements Runnable, InvocationHandler {
         verifyAgent(false);
         setStage(STAGE_LAUNCH);
         verifyNonEmpty("Cannot launch a wrapper capsule.");
-        final ProcessBuilder pb;
 
         final List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
-        pb = prepareForLaunch(jvmArgs, args);
+        final String planKey = systemPropertyEmptyOrTrue(PROP_LAUNCH_CACHE) ? getLaunchPlanKey(jvmArgs, args) : null;
+        ProcessBuilder pb = planKey != null ? readLaunchPlan(planKey) : null;
+        if (pb == null) {
+            pb = prepareForLaunch(jvmArgs, args);
+            if (pb != null && planKey != null)
+                writeLaunchPlan(planKey, pb);
+        }
         if (pb == null) { // can be null if prelaunch has been overridden by a subclass
             log(LOG_VERBOSE, "Nothing to run");
             return 0;
@@ -1340,6 +1550,171 @@ public class Capsule implements Runnable, InvocationHandler {
         return launch(pb);
     }
 
+    //<editor-fold defaultstate="collapsed" desc="Launch Plan Cache">
+    /////////// Launch Plan Cache ///////////////////////////////////
+    /*
+     * The launch plan -- the process's command line, working directory, and the changes to the environment -- is cached in the app cache
+     * (so it's discarded along with it), keyed by everything that may affect it.
+     */
+    private String getLaunchPlanKey(List<String> jvmArgs, List<String> args) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final List<String> key = new ArrayList<>();
+            key.add(getJarFile().toString());
+            key.add(getJarFingerprint());
+            key.add(String.valueOf(getMode()));
+            for (Capsule c = cc; c != null; c = c.sup)
+                key.add(c.getClass().getName());
+            key.addAll(jvmArgs);
+            key.add("--");
+            key.addAll(args);
+            for (String prop : new TreeSet<>(PROPERTIES.stringPropertyNames()))
+                key.add(prop + "=" + PROPERTIES.getProperty(prop));
+            for (Map.Entry<String, String> e : new TreeMap<>(System.getenv()).entrySet()) {
+                if (!isVolatileEnvVar(e.getKey()))
+                    key.add(e.getKey() + "=" + e.getValue());
+            }
+            final Path registry = getJvmRegistry();
+            if (registry != null && Files.exists(registry))
+                key.add(Files.getLastModifiedTime(registry).toMillis() + ":" + Files.size(registry));
+            for (String k : key) {
+                digest.update(k.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            return toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw rethrow(e);
+        }
+    }
+
+    // variables that change from shell to shell but don't affect the launch (they're passed through as they are when the plan is used)
+    private static boolean isVolatileEnvVar(String var) {
+        return "_".equals(var) || "SHLVL".equals(var) || "OLDPWD".equals(var);
+    }
+
+    private Path getLaunchPlanFile(String key) {
+        return (getAppDir() != null ? getAppDir() : getCacheDir()).resolve(LAUNCH_PLAN_PREFIX + key);
+    }
+
+    private ProcessBuilder readLaunchPlan(String key) {
+        final long start = clock();
+        getOrCreateAppDir();
+        cleanupCache();
+        final Path file = getLaunchPlanFile(key);
+        if (!Files.isRegularFile(file))
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != LAUNCH_PLAN_VERSION)
+                return null;
+            final ProcessBuilder pb = new ProcessBuilder();
+            final String dir = readString(in);
+            if (!dir.isEmpty())
+                pb.directory(new File(dir));
+            for (int n = in.readInt(); n > 0; n--)
+                pb.environment().remove(readString(in));
+            for (int n = in.readInt(); n > 0; n--)
+                pb.environment().put(readString(in), readString(in));
+            final List<String> cmd = new ArrayList<>();
+            for (int n = in.readInt(); n > 0; n--)
+                cmd.add(readString(in));
+            if (cmd.isEmpty() || !Files.exists(Paths.get(cmd.get(0)))) {
+                log(LOG_VERBOSE, "Cached launch plan " + file + " is stale");
+                return null;
+            }
+            pb.command(cmd);
+            log(LOG_VERBOSE, "Using cached launch plan " + file);
+            time("readLaunchPlan", start);
+            return pb;
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not read launch plan " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeLaunchPlan(String key, ProcessBuilder pb) {
+        if (oc.socket != null || dependsOnTempFiles(pb) || isClassDataSharingDump(pb)) {
+            log(LOG_VERBOSE, "Launch plan not cached because it depends on temporary files or on the comm channel, or dumps a class data sharing archive");
+            return;
+        }
+        final Path file = getLaunchPlanFile(key);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(file.getParent(), LAUNCH_PLAN_PREFIX, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(LAUNCH_PLAN_VERSION);
+                writeString(out, pb.directory() != null ? pb.directory().toString() : "");
+
+                final Map<String, String> env = System.getenv();
+                final List<String> unset = new ArrayList<>();
+                for (String var : env.keySet()) {
+                    if (!pb.environment().containsKey(var))
+                        unset.add(var);
+                }
+                out.writeInt(unset.size());
+                for (String var : unset)
+                    writeString(out, var);
+                final Map<String, String> set = new LinkedHashMap<>();
+                for (Map.Entry<String, String> e : pb.environment().entrySet()) {
+                    if (!e.getValue().equals(env.get(e.getKey())))
+                        set.put(e.getKey(), e.getValue());
+                }
+                out.writeInt(set.size());
+                for (Map.Entry<String, String> e : set.entrySet()) {
+                    writeString(out, e.getKey());
+                    writeString(out, e.getValue());
+                }
+
+                out.writeInt(pb.command().size());
+                for (String arg : pb.command())
+                    writeString(out, arg);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log(LOG_VERBOSE, "Cached launch plan in " + file);
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not cache launch plan: " + e.getMessage());
+            try {
+                if (tmp != null)
+                    Files.deleteIfExists(tmp);
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private boolean dependsOnTempFiles(ProcessBuilder pb) {
+        final List<String> strings = new ArrayList<>(pb.command());
+        strings.addAll(pb.environment().values());
+        if (pb.directory() != null)
+            strings.add(pb.directory().toString());
+        for (Path p : oc.tmpFiles) {
+            for (String s : strings) {
+                if (s.contains(p.toString()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isClassDataSharingDump(ProcessBuilder pb) {
+        for (String arg : pb.command()) {
+            if (arg.startsWith(CDS_DUMP_ARG))
+                return true;
+        }
+        return false;
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        final byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+    //</editor-fold>
+
     private void verifyNonEmpty(String message) {
         if (isEmptyCapsule())
             throw new IllegalArgumentException(message);
@@ -1408,12 +1783,16 @@ public class Capsule implements Runnable, InvocationHandler {
      * @return the process's exit value
      */
     protected int launch(ProcessBuilder pb) throws IOException, InterruptedException {
-        return (_ct = unsafe(getCallTarget(Capsule.class))) != null ? _ct.launch(pb) : launch0(pb);
+        return (_ct = unsafe(getCallTarget("launch"))) != null ? _ct.launch(pb) : launch0(pb);
     }
 
     private int launch0(ProcessBuilder pb) throws IOException, InterruptedException {
-        if (isTrampoline())
-            STDOUT.println(trampolineString(pb));
+        if (isTrampoline()) {
+            final String cmdline = trampolineString(pb);
+            markDetachedLaunch();
+            STDOUT.println(cmdline);
+        } else if (isExec())
+            STDOUT.println(writeLaunchScript(pb));
         else {
             Runtime.getRuntime().addShutdownHook(new Thread(this, "cleanup"));
 
@@ -1455,6 +1834,58 @@ public class Capsule implements Runnable, InvocationHandler {
         return join(cmdline, " ");
     }
 
+    /*
+     * Writes a script that runs the application in place of the shell running it (see capsule/exec-execheader.sh),
+     * so that the capsule's JVM doesn't stay resident. The script deletes itself when run.
+     */
+    private Path writeLaunchScript(ProcessBuilder pb) throws IOException {
+        if (isWindows())
+            throw new RuntimeException("Capsule cannot exec the application on Windows.");
+        final List<String> cmdline = new ArrayList<>(pb.command());
+        cmdline.remove("-D" + PROP_EXEC);
+        markDetachedLaunch();
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("#!/bin/sh\n");
+        sb.append("rm -f \"$0\"\n");
+        final Map<String, String> env = System.getenv();
+        for (String var : env.keySet()) {
+            if (!pb.environment().containsKey(var) && isShellVariableName(var))
+                sb.append("unset ").append(var).append('\n');
+        }
+        for (Map.Entry<String, String> e : pb.environment().entrySet()) {
+            if (!e.getValue().equals(env.get(e.getKey())) && isShellVariableName(e.getKey()))
+                sb.append("export ").append(e.getKey()).append('=').append(shellQuote(e.getValue())).append('\n');
+        }
+        if (pb.directory() != null)
+            sb.append("cd ").append(shellQuote(pb.directory().toString())).append(" || exit 1\n");
+        sb.append("exec");
+        for (String arg : cmdline)
+            sb.append(' ').append(shellQuote(arg));
+        sb.append('\n');
+
+        final Path script = Files.createTempFile(getLaunchFilesDir(), ".", ".sh");
+        Files.write(script, sb.toString().getBytes(Charset.defaultCharset()));
+        log(LOG_VERBOSE, "Wrote launch script " + script);
+        return script;
+    }
+
+    private static boolean isShellVariableName(String s) {
+        return s.matches("[A-Za-z_][A-Za-z0-9_]*");
+    }
+
+    private static String shellQuote(String s) {
+        return "'" + s.replace("'", "'\"'\"'") + "'";
+    }
+
+    /*
+     * Files used only for a single launch are kept next to the app caches (or in the cache directory if the capsule isn't extracted).
+     * Their names begin with a dot, so they're not mistaken for app caches.
+     */
+    private Path getLaunchFilesDir() {
+        return getAppDir() != null ? getAppDir().getParent() : getCacheDir();
+    }
+
     private void cleanup1() {
         log(LOG_VERBOSE, "Cleanup");
         log(LOG_DEBUG, new Exception("Stack trace"));
@@ -1468,13 +1899,14 @@ public class Capsule implements Runnable, InvocationHandler {
      * must be wither ignored completely or printed to STDERR.
      */
     protected void cleanup() {
-        if ((_ct = getCallTarget(Capsule.class)) != null)
+        if ((_ct = getCallTarget("cleanup")) != null)
             _ct.cleanup();
         else
             cleanup0();
     }
 
     private void cleanup0() {
+        logJMXStats();
         try {
             if (oc.child != null) {
                 killChild();
@@ -1526,7 +1958,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * The mode is chosen during the preparations for launch (not at construction time).
      */
     protected String chooseMode() {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.chooseMode() : chooseMode0();
+        return (_ct = getCallTarget("chooseMode")) != null ? _ct.chooseMode() : chooseMode0();
     }
 
     private String chooseMode0() {
@@ -1544,20 +1976,20 @@ public class Capsule implements Runnable, InvocationHandler {
      * @return a configured {@code ProcessBuilder} (if {@code null}, the launch will be aborted).
      */
     protected ProcessBuilder prelaunch(List<String> jvmArgs, List<String> args) {
-        return (_ct = unsafe(getCallTarget(Capsule.class))) != null ? _ct.prelaunch(jvmArgs, args) : prelaunch0(jvmArgs, args);
+        return (_ct = unsafe(getCallTarget("prelaunch"))) != null ? _ct.prelaunch(jvmArgs, args) : prelaunch0(jvmArgs, args);
     }
 
     private ProcessBuilder prelaunch0(List<String> jvmArgs, List<String> args) {
         try {
-            if (!isTrampoline() && getAttribute(ATTR_AGENT))
+            if (!isTrampoline() && !isExec() && getAttribute(ATTR_AGENT))
                 prepareServer();
             final ProcessBuilder pb = buildProcess();
             buildEnvironmentVariables(pb);
             pb.command().addAll(buildArgs(args));
-            cleanupCache(null);
+            cleanupCache();
             return pb;
         } catch (Throwable t) {
-            cleanupCache(t);
+            cleanupCache();
             throw t;
         }
     }
@@ -1578,7 +2010,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @return a {@code ProcessBuilder} (must never be {@code null}).
      */
     protected ProcessBuilder buildProcess() {
-        return (_ct = unsafe(getCallTarget(Capsule.class))) != null ? _ct.buildProcess() : buildProcess0();
+        return (_ct = unsafe(getCallTarget("buildProcess"))) != null ? _ct.buildProcess() : buildProcess0();
     }
 
     private ProcessBuilder buildProcess0() {
@@ -1597,7 +2029,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @param args The command line arguments passed to the capsule at launch
      */
     protected List<String> buildArgs(List<String> args) {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.buildArgs(args) : buildArgs0(args);
+        return (_ct = getCallTarget("buildArgs")) != null ? _ct.buildArgs(args) : buildArgs0(args);
     }
 
     private List<String> buildArgs0(List<String> args) {
@@ -1644,7 +2076,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @param env the current environment
      */
     protected Map<String, String> buildEnvironmentVariables(Map<String, String> env) {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.buildEnvironmentVariables(env) : buildEnvironmentVariables0(env);
+        return (_ct = getCallTarget("buildEnvironmentVariables")) != null ? _ct.buildEnvironmentVariables(env) : buildEnvironmentVariables0(env);
     }
 
     private Map<String, String> buildEnvironmentVariables0(Map<String, String> env) {
@@ -1673,6 +2105,10 @@ public class Capsule implements Runnable, InvocationHandler {
         return systemPropertyEmptyOrTrue(PROP_TRAMPOLINE);
     }
 
+    private static boolean isExec() {
+        return systemPropertyEmptyOrTrue(PROP_EXEC);
+    }
+
     /**
      * Called after the application has been launched by the capsule.
      * If this method returns a process, capsule will publish its pid (by setting a system property that may be queried by jcmd), await
@@ -1682,7 +2118,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @param child the child process running the application
      */
     protected Process postlaunch(Process child) {
-        return ((_ct = getCallTarget(Capsule.class)) != null) ? _ct.postlaunch(child) : postlaunch0(child);
+        return ((_ct = getCallTarget("postlaunch")) != null) ? _ct.postlaunch(child) : postlaunch0(child);
     }
 
     private Process postlaunch0(Process child) {
@@ -1693,7 +2129,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * Called after the application has been launched by the capsule and {@link #postlaunch(Process) postlauch} has returned a non-null process.
      */
     protected void liftoff() {
-        if ((_ct = getCallTarget(Capsule.class)) != null)
+        if ((_ct = getCallTarget("liftoff")) != null)
             _ct.liftoff();
         else
             liftoff0();
@@ -1718,7 +2154,7 @@ public class Capsule implements Runnable, InvocationHandler {
             return;
         oc.agentCalled = true;
 
-        if (getProperty(PROP_ADDRESS) != null || getProperty(PROP_PORT) != null)
+        if (getProperty(PROP_ADDRESS) != null || getProperty(PROP_PORT) != null || getProperty(PROP_SOCKET) != null)
             startClient();
     }
 
@@ -1743,10 +2179,14 @@ public class Capsule implements Runnable, InvocationHandler {
         }
 
         if (ATTR_SYSTEM_PROPERTIES == attr) {
-            if (oc.address != null) {
+            if (oc.address != null || oc.socketPath != null) {
                 final Map<String, String> props = new HashMap<>(cast(ATTR_SYSTEM_PROPERTIES, value));
-                props.put(PROP_ADDRESS, oc.address.getHostAddress());
-                props.put(PROP_PORT, Integer.toString(oc.port));
+                if (oc.socketPath != null)
+                    props.put(PROP_SOCKET, oc.socketPath.toString());
+                else {
+                    props.put(PROP_ADDRESS, oc.address.getHostAddress());
+                    props.put(PROP_PORT, Integer.toString(oc.port));
+                }
                 props.put(PROP_LOG_LEVEL, Integer.toString(getLogLevel()));
                 return (T) props;
             }
@@ -1756,6 +2196,8 @@ public class Capsule implements Runnable, InvocationHandler {
     }
 
     private void prepareServer() {
+        if (systemPropertyEmptyOrTrue(PROP_COMM_UNIX) && prepareUnixServer())
+            return;
         try {
             log(LOG_VERBOSE, "Starting capsule server.");
             InetSocketAddress sa = getLocalAddress();
@@ -1763,6 +2205,7 @@ public class Capsule implements Runnable, InvocationHandler {
             sa = (InetSocketAddress) server.getLocalSocketAddress();
             oc.address = sa.getAddress();
             oc.port = sa.getPort();
+            clearAttributeCache(); // the comm channel is passed in the system properties
             oc.socket = server;
             log(LOG_VERBOSE, "Binding capsule server at: " + oc.address.getHostAddress() + ":" + oc.port);
         } catch (IOException e) {
@@ -1770,13 +2213,55 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
+    /*
+     * Unix domain sockets are only available in Java 16+, so they're used reflectively, and only if the app's JVM supports them, too.
+     */
+    private boolean prepareUnixServer() {
+        getJavaHome();
+        if (oc.javaVersion == null || compareVersions(oc.javaVersion, "16") < 0) {
+            log(LOG_VERBOSE, "Cannot use a Unix domain socket for the comm channel; using TCP.");
+            return false;
+        }
+        ServerSocketChannel server = null;
+        try {
+            final Path socket = Files.createTempFile(getLaunchFilesDir(), ".", ".sock");
+            Files.delete(socket);
+            if (socket.toString().length() > MAX_UNIX_SOCKET_PATH) {
+                log(LOG_VERBOSE, "Unix domain socket path " + socket + " is too long; using TCP.");
+                return false;
+            }
+            log(LOG_VERBOSE, "Starting capsule server.");
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unixProtocolFamily());
+            server.bind(unixSocketAddress(socket));
+            addTempFile(socket);
+            oc.socketPath = socket;
+            clearAttributeCache(); // the comm channel is passed in the system properties
+            oc.socket = server;
+            log(LOG_VERBOSE, "Binding capsule server at: " + socket);
+            return true;
+        } catch (Exception e) {
+            log(LOG_VERBOSE, "Could not bind a Unix domain socket (" + e + "); using TCP.");
+            if (server != null)
+                close(server);
+            return false;
+        }
+    }
+
+    private static ProtocolFamily unixProtocolFamily() {
+        return StandardProtocolFamily.valueOf("UNIX");
+    }
+
+    private static SocketAddress unixSocketAddress(Path path) throws ReflectiveOperationException {
+        return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class).invoke(null, path);
+    }
+
     private void startServer() throws IOException {
-        try (ServerSocket server = (ServerSocket) oc.socket) {
-            server.setSoTimeout(SOCKET_TIMEOUT);
+        try {
             log(LOG_VERBOSE, "Waiting for client to connect...");
-            final Socket s = server.accept();
-            openSocketStreams(s);
-            oc.socket = s;
+            if (oc.socket instanceof ServerSocketChannel)
+                oc.socket = acceptChannel((ServerSocketChannel) oc.socket);
+            else
+                oc.socket = acceptSocket((ServerSocket) oc.socket);
             log(LOG_VERBOSE, "Client connected");
         } catch (IOException e) {
             if (isChildAlive()) {
@@ -1787,20 +2272,53 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
+    private Socket acceptSocket(ServerSocket server0) throws IOException {
+        try (ServerSocket server = server0) {
+            server.setSoTimeout(SOCKET_TIMEOUT);
+            final Socket s = server.accept();
+            openSocketStreams(s);
+            return s;
+        }
+    }
+
+    private SocketChannel acceptChannel(ServerSocketChannel server0) throws IOException {
+        try (ServerSocketChannel server = server0;
+             Selector selector = Selector.open()) {
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            if (selector.select(SOCKET_TIMEOUT) == 0)
+                throw new SocketTimeoutException("Accept timed out");
+            final SocketChannel ch = server.accept();
+            openChannelStreams(ch);
+            return ch;
+        }
+    }
+
     private void startClient() {
-        log(LOG_VERBOSE, "Starting capsule client: " + getProperty(PROP_ADDRESS) + ":" + getProperty(PROP_PORT));
-        if (getProperty(PROP_ADDRESS) == null || getProperty(PROP_PORT) == null)
+        final String socketPath = getProperty(PROP_SOCKET);
+        log(LOG_VERBOSE, "Starting capsule client: " + (socketPath != null ? socketPath : getProperty(PROP_ADDRESS) + ":" + getProperty(PROP_PORT)));
+        if (socketPath == null && (getProperty(PROP_ADDRESS) == null || getProperty(PROP_PORT) == null))
             throw new IllegalStateException("Comm channel not defined");
         try {
-            oc.address = InetAddress.getByName(getProperty(PROP_ADDRESS));
-            oc.port = Integer.valueOf(getProperty(PROP_PORT));
-            final Socket s = new Socket();
-            s.connect(new InetSocketAddress(oc.address, oc.port), SOCKET_TIMEOUT);
-            openSocketStreams(s);
-            oc.socket = s;
+            if (socketPath != null) {
+                oc.socketPath = Paths.get(socketPath);
+                clearAttributeCache(); // the comm channel is passed in the system properties
+                final SocketChannel ch = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unixProtocolFamily());
+                oc.socket = ch;
+                ch.connect(unixSocketAddress(oc.socketPath));
+                openChannelStreams(ch);
+            } else {
+                oc.address = InetAddress.getByName(getProperty(PROP_ADDRESS));
+                oc.port = Integer.valueOf(getProperty(PROP_PORT));
+                clearAttributeCache(); // the comm channel is passed in the system properties
+                final Socket s = new Socket();
+                s.connect(new InetSocketAddress(oc.address, oc.port), SOCKET_TIMEOUT);
+                openSocketStreams(s);
+                oc.socket = s;
+            }
             log(LOG_VERBOSE, "Client connected,");
             startThread("capsule-comm", "receiveLoop");
-        } catch (IOException e) {
+        } catch (IOException | ReflectiveOperationException e) {
             log(LOG_VERBOSE, "Client connection failed.");
             printError(LOG_VERBOSE, e);
             closeComm();
@@ -1811,9 +2329,9 @@ public class Capsule implements Runnable, InvocationHandler {
         synchronized (oc) {
             try {
                 s.setSoTimeout(SOCKET_TIMEOUT);
-                oc.socketOutput = new ObjectOutputStream(s.getOutputStream());
-                oc.socketOutput.flush();
-                oc.socketInput = new ObjectInputStream(s.getInputStream());
+                s.setTcpNoDelay(true);
+                openCommStreams(s, new DataInputStream(new BufferedInputStream(s.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
                 s.setSoTimeout(0);
             } catch (IOException e) {
                 if (e instanceof SocketTimeoutException)
@@ -1824,6 +2342,69 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
+    private void openChannelStreams(SocketChannel ch) throws IOException {
+        synchronized (oc) {
+            try {
+                // Writes go to a buffer that is written to the channel on flush (see flushComm), because a stream obtained
+                // from Channels.newOutputStream would contend with the blocked reader on the channel's blocking lock
+                oc.socketBuffer = new ByteArrayOutputStream();
+                openCommStreams(ch, new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch))),
+                        new DataOutputStream(oc.socketBuffer));
+            } catch (IOException e) {
+                close(ch);
+                throw e;
+            }
+        }
+    }
+
+    private void openCommStreams(Object socket, DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeInt(COMM_MAGIC);
+        out.writeInt(COMM_VERSION);
+        flushComm(socket, out);
+        if (socket instanceof SocketChannel)
+            readHandshake((SocketChannel) socket);
+        else if (in.readInt() != COMM_MAGIC || in.readInt() != COMM_VERSION)
+            throw new IOException("Incompatible comm protocol");
+        oc.socketOutput = out;
+        oc.socketInput = in;
+    }
+
+    /*
+     * A blocking channel ignores SO_TIMEOUT, so the peer's handshake is read through a selector, in non-blocking mode, with a timeout.
+     */
+    private static void readHandshake(SocketChannel ch) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(8);
+        try (Selector selector = Selector.open()) {
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ);
+            final long deadline = System.currentTimeMillis() + SOCKET_TIMEOUT;
+            while (buf.hasRemaining()) {
+                final long timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0)
+                    throw new SocketTimeoutException("Comm handshake timed out");
+                if (selector.select(timeout) > 0) {
+                    selector.selectedKeys().clear();
+                    if (ch.read(buf) < 0)
+                        throw new EOFException("Comm channel closed during handshake");
+                }
+            }
+        }
+        ch.configureBlocking(true); // closing the selector has deregistered the channel
+        buf.flip();
+        if (buf.getInt() != COMM_MAGIC || buf.getInt() != COMM_VERSION)
+            throw new IOException("Incompatible comm protocol");
+    }
+
+    private void flushComm(Object socket, DataOutputStream out) throws IOException {
+        out.flush();
+        if (socket instanceof SocketChannel) {
+            final ByteBuffer buf = ByteBuffer.wrap(oc.socketBuffer.toByteArray());
+            oc.socketBuffer.reset();
+            while (buf.hasRemaining())
+                ((SocketChannel) socket).write(buf);
+        }
+    }
+
     private void closeComm() {
         synchronized (oc) {
             log(LOG_VERBOSE, "Closing comm");
@@ -1832,6 +2413,9 @@ public class Capsule implements Runnable, InvocationHandler {
             oc.socket = null;
             oc.address = null;
             oc.port = 0;
+            oc.socketPath = null;
+            clearAttributeCache(); // the comm channel is passed in the system properties
+            oc.socketBuffer = null;
             oc.socketOutput = null;
             oc.socketInput = null;
         }
@@ -1853,12 +2437,16 @@ public class Capsule implements Runnable, InvocationHandler {
     }
 
     private boolean send(int message, Object payload) {
+        return send(message, oc.messageIds.incrementAndGet(), payload);
+    }
+
+    private boolean send(int message, int id, Object payload) {
         if (!AGENT)
             verifyAfterStage(STAGE_LAUNCH);
         if (oc.socketOutput == null)
             return false;
         try {
-            send0(message, payload);
+            send0(message, id, payload);
             return true;
         } catch (IOException e) {
             log(LOG_VERBOSE, "Sending of message " + message + ": " + payload + " failed - " + e.getMessage());
@@ -1867,40 +2455,108 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
-    private void send0(int message, Object payload) throws IOException {
-        synchronized (oc) {
-            if (oc.socketOutput == null)
-                throw new IOException("comm channel not defined");
-            log(LOG_VERBOSE, "Sending message " + message + " : " + payload);
-            oc.socketOutput.writeInt(message);
-            oc.socketOutput.writeObject(payload);
-            oc.socketOutput.flush();
+    private void send0(int message, int id, Object payload) throws IOException {
+        final DataOutputStream out = oc.socketOutput;
+        if (out == null)
+            throw new IOException("comm channel not defined");
+        log(LOG_VERBOSE, "Sending message " + message + " (" + id + ") : " + payload);
+        // senders queued behind us will flush; only the last one in a burst does
+        oc.pendingSends.incrementAndGet();
+        synchronized (out) {
+            try {
+                writeMessage(out, message, id, payload);
+            } finally {
+                if (oc.pendingSends.decrementAndGet() == 0)
+                    flushComm(oc.socket, out);
+            }
         }
     }
 
+    // only called by the comm thread, so reading doesn't block senders
     private boolean receive() throws IOException {
-        synchronized (oc) {
-            if (!AGENT)
-                verifyAfterStage(STAGE_LAUNCH);
-            if (oc.socket == null)
-                return false;
-            try {
-                final int message = oc.socketInput.readInt();
-                final Object payload = oc.socketInput.readObject();
-                log(LOG_VERBOSE, "Message received " + message + " : " + payload);
-                receive(message, payload);
+        if (!AGENT)
+            verifyAfterStage(STAGE_LAUNCH);
+        final DataInputStream in = oc.socketInput;
+        if (oc.socket == null || in == null)
+            return false;
+        try {
+            final Object[] m = readMessage(in);
+            if (m == null)
                 return true;
-            } catch (EOFException e) {
-                log(LOG_VERBOSE, "Received EOF");
-                log(LOG_VERBOSE, e);
-                return false;
-            } catch (ClassNotFoundException e) {
-                throw new IOException(e);
-            }
+            log(LOG_VERBOSE, "Message received " + m[0] + " (" + m[1] + ") : " + m[2]);
+            receive((Integer) m[0], (Integer) m[1], m[2]);
+            return true;
+        } catch (EOFException e) {
+            log(LOG_VERBOSE, "Received EOF");
+            log(LOG_VERBOSE, e);
+            return false;
+        }
+    }
+
+    /*
+     * A message is framed as: payload length (int), message type (int), message id (int), payload.
+     * Replies carry the id of the message they respond to.
+     */
+    private static void writeMessage(DataOutput out, int message, int id, Object payload) throws IOException {
+        final byte[] body = encodePayload(message, payload);
+        out.writeInt(body.length);
+        out.writeInt(message);
+        out.writeInt(id);
+        out.write(body);
+    }
+
+    /**
+     * Returns {type, id, payload}, or {@code null} if the message type is unknown (the message is skipped).
+     */
+    private static Object[] readMessage(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_LENGTH)
+            throw new IOException("Bad message length: " + length);
+        final int message = in.readInt();
+        final int id = in.readInt();
+        final byte[] body = new byte[length];
+        in.readFully(body);
+        switch (message) {
+            case MESSAGE_EXIT:
+            case MESSAGE_START_JMX:
+            case MESSAGE_JMX_URL:
+                return new Object[]{message, id, decodePayload(message, body)};
+            default:
+                return null;
+        }
+    }
+
+    private static byte[] encodePayload(int message, Object payload) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        switch (message) {
+            case MESSAGE_EXIT:
+                out.writeInt((Integer) payload);
+                break;
+            case MESSAGE_START_JMX:
+                break;
+            case MESSAGE_JMX_URL:
+                out.writeUTF(payload.toString());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown message " + message);
         }
+        return bytes.toByteArray();
     }
 
-    private void receive(int message, Object payload) {
+    private static Object decodePayload(int message, byte[] body) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        switch (message) {
+            case MESSAGE_EXIT:
+                return in.readInt();
+            case MESSAGE_JMX_URL:
+                return new JMXServiceURL(in.readUTF());
+            default:
+                return null;
+        }
+    }
+
+    private void receive(int message, int id, Object payload) {
         switch (message) {
             case MESSAGE_EXIT:
                 System.exit((Integer) payload);
@@ -1909,7 +2565,7 @@ public class Capsule implements Runnable, InvocationHandler {
                 if (AGENT) {
                     final JMXServiceURL jmxurl = startJMXServer();
                     if (jmxurl != null)
-                        send(MESSAGE_JMX_URL, jmxurl);
+                        send(MESSAGE_JMX_URL, id, jmxurl);
                 }
                 break;
             case MESSAGE_JMX_URL:
@@ -1925,7 +2581,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @deprecated exclude from javadocs
      */
     protected InetSocketAddress getLocalAddress() {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.getLocalAddress() : getLocalAddress0();
+        return (_ct = getCallTarget("getLocalAddress")) != null ? _ct.getLocalAddress() : getLocalAddress0();
     }
 
     private InetSocketAddress getLocalAddress0() {
@@ -2113,7 +2769,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * Returns the path of the application cache (this is the directory where the capsule is extracted if necessary).
      */
     protected Path buildAppCacheDir() {
-        return (_ct = unsafe(getCallTarget(Capsule.class))) != null ? _ct.buildAppCacheDir() : buildAppCacheDir0();
+        return (_ct = unsafe(getCallTarget("buildAppCacheDir"))) != null ? _ct.buildAppCacheDir() : buildAppCacheDir0();
     }
 
     private Path buildAppCacheDir0() {
@@ -2125,14 +2781,30 @@ public class Capsule implements Runnable, InvocationHandler {
         try {
             final long start = clock();
             final Path dir = toAbsolutePath(getCacheDir().resolve(APP_CACHE_NAME).resolve(getAppId()));
-            Files.createDirectories(dir, getPermissions(getExistingAncestor(dir)));
+            Files.createDirectories(dir.getParent(), getPermissions(getExistingAncestor(dir.getParent())));
+            lockAppCacheUse(dir);
 
-            oc.cacheUpToDate = isAppCacheUpToDate1(dir);
-            if (!oc.cacheUpToDate) {
-                resetAppCache(dir);
-                extractCapsule(dir);
+            if (!isAppCacheUpToDate1(dir)) {
+                try {
+                    final Path staging = createStagingDir(dir);
+                    try {
+                        if (!systemPropertyEmptyOrTrue(PROP_INCREMENTAL) || !updateAppCache(dir, staging))
+                            extractCapsule(staging);
+                        markCache(staging);
+                        publishAppCache(dir, staging);
+                    } catch (Throwable t) {
+                        delete(staging);
+                        throw t;
+                    }
+                } finally {
+                    unlockAppCache(dir);
+                }
+                final long quota = getCacheQuota();
+                if (quota >= 0)
+                    evictAppCaches(quota, dir);
             } else
                 log(LOG_VERBOSE, "App cache " + dir + " is up to date.");
+            touchAppCache(dir);
 
             time("buildAppCacheDir", start);
             return dir;
@@ -2143,24 +2815,77 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
-    private void resetAppCache(Path dir) throws IOException {
+    /*
+     * The capsule is never extracted into the live app cache directory. It is extracted into a fresh staging directory next to it,
+     * which is marked and then published: the app cache directory is a symbolic link to a versioned directory, and it is atomically
+     * replaced by a link to the staging directory. Readers of an up-to-date cache therefore never take the lock, and never see a partially
+     * extracted cache; the lock only serializes writers.
+     * Where symbolic links aren't supported, the directories themselves are swapped (under the lock), and a reader that happens to look
+     * in between finds no cache, and so waits for the lock.
+     */
+    private Path createStagingDir(Path dir) throws IOException {
+        deleteStaleAppCaches(dir);
+        final Path staging = Files.createTempDirectory(dir.getParent(), appCacheVersionPrefix(dir), getPermissions(dir.getParent()));
+        log(LOG_DEBUG, "(Re)Creating cache for " + getJarFile() + " in " + staging.toAbsolutePath());
+        return staging;
+    }
+
+    private void publishAppCache(Path dir, Path staging) throws IOException {
+        log(LOG_VERBOSE, "Publishing app cache " + staging + " as " + dir);
+        Path link = dir.resolveSibling(staging.getFileName() + ".link");
         try {
-            log(LOG_DEBUG, "(Re)Creating cache for " + getJarFile() + " in " + dir.toAbsolutePath());
-            final Path lockFile = dir.resolve(LOCK_FILE_NAME);
-            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
-                for (Path f : ds) {
-                    if (!lockFile.equals(f))
-                        delete(f);
-                }
-            }
-        } catch (IOException e) {
-            throw new IOException("Exception while clearing app cache directory " + dir.toAbsolutePath(), e);
+            Files.createSymbolicLink(link, staging.getFileName());
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            log(LOG_DEBUG, "Cannot create symbolic link " + link + " (" + e + "); swapping directories");
+            link = null;
         }
-    }
 
-    private boolean isAppCacheUpToDate1(Path dir) throws IOException {
-        boolean res = testAppCacheUpToDate(dir);
-        if (!res) {
+        Path previous = null;
+        if (Files.isSymbolicLink(dir))
+            previous = dir.resolveSibling(Files.readSymbolicLink(dir));
+        else if (Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            previous = dir.resolveSibling(staging.getFileName() + ".old");
+            Files.move(dir, previous, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        Files.move(link != null ? link : staging, dir, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        if (previous != null) {
+            try {
+                delete(previous);
+            } catch (IOException e) {
+                log(LOG_VERBOSE, "Could not delete previous app cache " + previous + ": " + e.getMessage()); // will be retried by the next writer
+            }
+        }
+    }
+
+    /*
+     * Deletes leftovers of failed or superseded extractions. Must be called with the lock held.
+     */
+    private static void deleteStaleAppCaches(Path dir) throws IOException {
+        final Path current = Files.isSymbolicLink(dir) ? dir.resolveSibling(Files.readSymbolicLink(dir)) : null;
+        final String prefix = appCacheVersionPrefix(dir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir.getParent())) {
+            for (Path f : ds) {
+                final String name = f.getFileName().toString();
+                if (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+(\\.link|\\.old)?") && !f.equals(current)) {
+                    try {
+                        delete(f);
+                    } catch (IOException e) {
+                        log(LOG_VERBOSE, "Could not delete stale app cache " + f + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static String appCacheVersionPrefix(Path dir) {
+        return "." + dir.getFileName() + "~";
+    }
+
+    private boolean isAppCacheUpToDate1(Path dir) throws IOException {
+        boolean res = testAppCacheUpToDate(dir);
+        if (!res) {
             lockAppCache(dir);
             res = testAppCacheUpToDate(dir);
             if (res)
@@ -2176,6 +2901,13 @@ public class Capsule implements Runnable, InvocationHandler {
         Path extractedFile = dir.resolve(TIMESTAMP_FILE_NAME);
         if (!Files.exists(extractedFile))
             return false;
+        if (!FRESHNESS_MTIME.equals(getCacheFreshness())) {
+            final String jarFingerprint = getJarFingerprint();
+            final String extractedFingerprint = new String(Files.readAllBytes(extractedFile), "UTF-8").trim();
+            final boolean fresh = jarFingerprint.equals(extractedFingerprint);
+            log(LOG_DEBUG, "JAR fingerprint: " + jarFingerprint + " Cache fingerprint: " + extractedFingerprint + " (" + (fresh ? "fresh" : "stale") + ")");
+            return fresh;
+        }
         final FileTime jarTime = Files.getLastModifiedTime(getJarFile());
         final FileTime extractedTime = Files.getLastModifiedTime(extractedFile);
         final boolean fresh = extractedTime.compareTo(jarTime) >= 0;
@@ -2187,36 +2919,149 @@ public class Capsule implements Runnable, InvocationHandler {
         try {
             log(LOG_VERBOSE, "Extracting " + getJarFile() + " to app cache directory " + dir.toAbsolutePath());
             log(LOG_DEBUG, new Exception("Stack trace"));
-            extractJar(openJarInputStream(getJarFile()), dir);
+            final Map<String, long[]> index = getJarIndex(getJarFile());
+            if (index.containsValue(null)) { // no central directory
+                try (JarInputStream jis = openJarInputStream(getJarFile())) {
+                    extractJar(jis, dir);
+                }
+            } else
+                extractEntries(getJarFile(), index, getExtractedEntries(index), dir);
         } catch (IOException e) {
             throw new IOException("Exception while extracting jar " + getJarFile() + " to app cache directory " + dir.toAbsolutePath(), e);
         }
     }
 
-    private void cleanupCache(Throwable exception) {
+    /*
+     * Incremental extraction: the names, CRCs and sizes of the extracted entries are recorded in EXTRACTED_ENTRIES_FILE_NAME.
+     * Files of the current app cache whose entry hasn't changed since it was recorded are linked (or copied) into the staging directory,
+     * and only the rest are extracted.
+     */
+    private boolean updateAppCache(Path dir, Path staging) throws IOException {
+        final Map<String, long[]> index = getJarIndex(getJarFile());
+        if (index.containsValue(null))
+            return false; // no central directory
         try {
-            try {
-                if (exception == null)
-                    markCache();
-            } finally {
-                unlockAppCache();
+            log(LOG_VERBOSE, "Updating app cache directory " + dir.toAbsolutePath() + " from " + getJarFile());
+            final long start = clock();
+            final Map<String, String> extracted = readExtractedEntries(dir);
+
+            int reused = 0;
+            final List<String> missing = new ArrayList<>();
+            final List<String> record = new ArrayList<>();
+            for (String name : getExtractedEntries(index)) {
+                final long[] entry = index.get(name);
+                final String path = toNativePath(name);
+                final Path f = dir.resolve(path);
+                record.add(extractedEntry(name, entry));
+                if (extractedEntry(name, entry).equals(extracted.get(path)) && Files.isRegularFile(f) && Files.size(f) == entry[ENTRY_SIZE]) {
+                    link(f, newFile(staging, name));
+                    reused++;
+                } else
+                    missing.add(name);
             }
+            extractEntries(getJarFile(), index, missing, staging);
+
+            Files.write(staging.resolve(EXTRACTED_ENTRIES_FILE_NAME), record, Charset.forName("UTF-8"));
+            log(LOG_VERBOSE, "App cache updated: " + reused + " files reused, " + missing.size() + " files extracted.");
+            time("updateAppCache", start);
+            return true;
+        } catch (IOException e) {
+            throw new IOException("Exception while updating app cache directory " + dir.toAbsolutePath() + " from jar " + getJarFile(), e);
+        }
+    }
+
+    private static String extractedEntry(String name, long[] entry) {
+        return Long.toHexString(entry[ENTRY_CRC]) + ' ' + entry[ENTRY_SIZE] + ' ' + name;
+    }
+
+    private static Map<String, String> readExtractedEntries(Path dir) throws IOException {
+        final Map<String, String> extracted = new HashMap<>();
+        final Path file = dir.resolve(EXTRACTED_ENTRIES_FILE_NAME);
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, Charset.forName("UTF-8"))) {
+                final String name = getAfter(line, ' ', 2);
+                if (name != null)
+                    extracted.put(toNativePath(name), line);
+            }
+        }
+        return extracted;
+    }
+
+    private void cleanupCache() {
+        try {
+            unlockAppCache();
         } catch (IOException e) {
             throw rethrow(e);
         }
     }
 
-    private void markCache() throws IOException {
-        if (!oc.plainCache || oc.appDir == null || oc.cacheUpToDate)
-            return;
-        if (Files.isWritable(oc.appDir))
-            Files.createFile(oc.appDir.resolve(TIMESTAMP_FILE_NAME));
+    private void markCache(Path dir) throws IOException {
+        final Path extractedFile = dir.resolve(TIMESTAMP_FILE_NAME);
+        if (FRESHNESS_MTIME.equals(getCacheFreshness()))
+            Files.createFile(extractedFile);
+        else
+            Files.write(extractedFile, getJarFingerprint().getBytes("UTF-8"));
+    }
+
+    private static String getCacheFreshness() {
+        final String freshness = emptyToNull(getProperty(PROP_CACHE_FRESHNESS));
+        if (freshness == null)
+            return FRESHNESS_FINGERPRINT;
+        switch (freshness.toLowerCase()) {
+            case FRESHNESS_MTIME:
+            case FRESHNESS_FINGERPRINT:
+            case FRESHNESS_HASH:
+                return freshness.toLowerCase();
+            default:
+                throw new IllegalArgumentException("Unrecognized cache freshness policy: " + freshness);
+        }
+    }
+
+    /*
+     * The fingerprint is a hash of the names, CRCs and sizes of all JAR entries (which covers the manifest), as found in the central directory.
+     * If the central directory can't be used, or if the hash policy is chosen, it is a hash of the entire JAR file.
+     */
+    private String getJarFingerprint() throws IOException {
+        if (oc.jarFingerprint == null) {
+            final long start = clock();
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+            final Map<String, long[]> index = FRESHNESS_HASH.equals(getCacheFreshness()) ? null : getJarIndex(getJarFile());
+            final String kind;
+            if (index != null && !index.containsValue(null)) {
+                kind = FRESHNESS_FINGERPRINT;
+                for (Map.Entry<String, long[]> entry : index.entrySet()) {
+                    digest.update(entry.getKey().getBytes("UTF-8"));
+                    digest(digest, entry.getValue()[ENTRY_CRC]);
+                    digest(digest, entry.getValue()[ENTRY_SIZE]);
+                }
+            } else {
+                kind = FRESHNESS_HASH;
+                try (InputStream is = Files.newInputStream(getJarFile())) {
+                    final byte[] buffer = new byte[8192];
+                    for (int n; (n = is.read(buffer)) >= 0;)
+                        digest.update(buffer, 0, n);
+                }
+            }
+            oc.jarFingerprint = kind + ":" + toHexString(digest.digest());
+            time("getJarFingerprint", start);
+        }
+        return oc.jarFingerprint;
+    }
+
+    private static void digest(MessageDigest digest, long x) {
+        for (int i = 0; i < 8; i++)
+            digest.update((byte) (x >>> (8 * i)));
     }
 
     private void lockAppCache(Path dir) throws IOException {
-        final Path lockFile = addTempFile(dir.resolve(LOCK_FILE_NAME));
+        final Path lockFile = addTempFile(getLockFile(dir));
         log(LOG_VERBOSE, "Locking " + lockFile);
-        final FileChannel c = FileChannel.open(lockFile, new HashSet<>(asList(StandardOpenOption.CREATE, StandardOpenOption.WRITE)), getPermissions(dir));
+        final FileChannel c = FileChannel.open(lockFile, new HashSet<>(asList(StandardOpenOption.CREATE, StandardOpenOption.WRITE)), getPermissions(dir.getParent()));
 
         if (this.appCacheLock != null) {
             // This shouldn't happen, but due to some other bug it's possible that the cache was locked and not released.
@@ -2230,18 +3075,270 @@ public class Capsule implements Runnable, InvocationHandler {
 
     private void unlockAppCache(Path dir) throws IOException {
         if (appCacheLock != null) {
-            log(LOG_VERBOSE, "Unlocking " + dir.resolve(LOCK_FILE_NAME));
+            log(LOG_VERBOSE, "Unlocking " + getLockFile(dir));
             appCacheLock.release();
             appCacheLock.acquiredBy().close();
             appCacheLock = null;
         }
     }
 
+    // the lock is kept outside the app cache directory, which is replaced whenever the capsule is extracted
+    private static Path getLockFile(Path dir) {
+        return dir.resolveSibling("." + dir.getFileName() + LOCK_FILE_NAME);
+    }
+
     private void unlockAppCache() throws IOException {
         if (!oc.plainCache || oc.appDir == null)
             return;
         unlockAppCache(oc.appDir);
     }
+
+    /*
+     * Every capsule using an app cache holds a shared lock on its use-lock file for as long as it runs, so that the cache isn't evicted.
+     * The lock is released when the process exits.
+     */
+    private void lockAppCacheUse(Path dir) throws IOException {
+        if (appCacheUseLock != null)
+            return;
+        final FileChannel c = FileChannel.open(getUseLockFile(dir), new HashSet<>(asList(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)), getPermissions(dir.getParent()));
+        try {
+            this.appCacheUseLock = c.lock(0, Long.MAX_VALUE, true);
+        } catch (OverlappingFileLockException e) {
+            c.close(); // already held by this JVM
+        }
+    }
+
+    private static Path getUseLockFile(Path dir) {
+        return dir.resolveSibling("." + dir.getFileName() + USE_LOCK_FILE_NAME);
+    }
+
+    /*
+     * A capsule that trampolines or execs the application exits (releasing its use-lock) while the application still runs,
+     * so instead, the launch time is recorded, and the cache isn't evicted for capsule.cache.grace hours afterwards.
+     */
+    private void markDetachedLaunch() throws IOException {
+        if (oc.plainCache && oc.appDir != null)
+            markDetachedLaunch(oc.appDir);
+    }
+
+    private static void markDetachedLaunch(Path dir) throws IOException {
+        final Path marker = getDetachedFile(dir);
+        if (!Files.exists(marker))
+            Files.createFile(marker);
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    private static boolean isDetachedLaunchRecent(Path dir) throws IOException {
+        final Path marker = getDetachedFile(dir);
+        return Files.exists(marker) && System.currentTimeMillis() - Files.getLastModifiedTime(marker).toMillis() < getCacheGrace();
+    }
+
+    private static Path getDetachedFile(Path dir) {
+        return dir.resolveSibling("." + dir.getFileName() + DETACHED_FILE_NAME);
+    }
+
+    private static long getCacheGrace() {
+        final String grace = emptyToNull(getProperty(PROP_CACHE_GRACE));
+        try {
+            return (grace != null ? Math.max(0, Long.parseLong(grace)) : DEFAULT_CACHE_GRACE) * 60 * 60 * 1000;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for " + PROP_CACHE_GRACE + ": " + grace);
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Cache Management">
+    /////////// Cache Management ///////////////////////////////////
+    /*
+     * An app cache's last-use time is the modification time of its (versioned) directory, which is updated whenever it is used.
+     */
+    private static void touchAppCache(Path dir) {
+        try {
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log(LOG_DEBUG, "Could not update the last-use time of " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns all app caches, least recently used first, each mapped to {last use time, size}, where the size doesn't count files
+     * shared with other app caches.
+     * Fills {@code files} with the files in the app caches and in the shared store, each mapped to {size, number of app caches containing it},
+     * and, if it isn't null, {@code contents} with the files in each app cache.
+     * Files are identified by their file keys (on Unix, the device and inode), so that a file hard-linked from the store into several
+     * app caches is counted once.
+     */
+    private Map<Path, long[]> getAppCaches(Map<Object, long[]> files, Map<Path, Set<Object>> contents) throws IOException {
+        final Path apps = getCacheDir().resolve(APP_CACHE_NAME);
+        final TreeMap<Long, List<Path>> byLastUse = new TreeMap<>();
+        final Map<Path, Set<Object>> appFiles = new HashMap<>();
+        if (Files.isDirectory(apps)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(apps)) {
+                for (Path f : ds) {
+                    if (f.getFileName().toString().startsWith(".") || !Files.isDirectory(f))
+                        continue;
+                    final long lastUse = Files.getLastModifiedTime(f).toMillis();
+                    if (!byLastUse.containsKey(lastUse))
+                        byLastUse.put(lastUse, new ArrayList<Path>());
+                    byLastUse.get(lastUse).add(f);
+                    final Set<Object> keys = new HashSet<>();
+                    addFiles(f, files, keys);
+                    appFiles.put(f, keys);
+                }
+            }
+        }
+        final Path store = getCacheDir().resolve(STORE_CACHE_NAME);
+        if (Files.isDirectory(store))
+            addFiles(store, files, null);
+
+        final Map<Path, long[]> caches = new LinkedHashMap<>();
+        for (Map.Entry<Long, List<Path>> e : byLastUse.entrySet()) {
+            for (Path f : e.getValue()) {
+                long size = 0;
+                for (Object key : appFiles.get(f)) {
+                    final long[] file = files.get(key);
+                    if (file[1] == 1)
+                        size += file[0];
+                }
+                caches.put(f, new long[]{e.getKey(), size});
+            }
+        }
+        if (contents != null)
+            contents.putAll(appFiles);
+        return caches;
+    }
+
+    private static void addFiles(Path dir, Map<Object, long[]> files, Set<Object> keys) throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path f : ds) {
+                final BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.isDirectory())
+                    addFiles(f, files, keys);
+                else if (attrs.isRegularFile()) {
+                    final Object key = attrs.fileKey() != null ? attrs.fileKey() : f;
+                    long[] file = files.get(key);
+                    if (file == null) {
+                        file = new long[]{attrs.size(), 0};
+                        files.put(key, file);
+                    }
+                    if (keys != null && keys.add(key))
+                        file[1]++;
+                }
+            }
+        }
+    }
+
+    /*
+     * Evicts the least recently used app caches, other than the given one, until their total size is within the quota.
+     * A file shared by several app caches is freed when the last of them is evicted. Files in the shared store that are not in
+     * any app cache aren't counted, as they're removed by pruneSharedStore.
+     */
+    private void evictAppCaches(long quota, Path keep) throws IOException {
+        final long start = clock();
+        final Map<Object, long[]> files = new HashMap<>();
+        final Map<Path, Set<Object>> contents = new HashMap<>();
+        final Map<Path, long[]> caches = getAppCaches(files, contents);
+        long total = 0;
+        for (long[] file : files.values()) {
+            if (file[1] > 0)
+                total += file[0];
+        }
+        for (Map.Entry<Path, long[]> e : caches.entrySet()) {
+            if (total <= quota)
+                break;
+            if (e.getKey().equals(keep))
+                continue;
+            if (evictAppCache(e.getKey())) {
+                for (Object key : contents.get(e.getKey())) {
+                    final long[] file = files.get(key);
+                    if (--file[1] == 0)
+                        total -= file[0];
+                }
+            }
+        }
+        if (total > quota)
+            log(LOG_VERBOSE, "App caches (" + total + " bytes) exceed the quota of " + quota + " bytes, but the rest are in use");
+        pruneSharedStore();
+        time("evictAppCaches", start);
+    }
+
+    /*
+     * Deletes the given app cache unless it's being extracted (its lock is held), it's in use by a running capsule (its use-lock is held),
+     * or it's been recently used by an application launched through the trampoline or with capsule.exec.
+     */
+    private static boolean evictAppCache(Path dir) throws IOException {
+        try (FileChannel lc = FileChannel.open(getLockFile(dir), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel uc = FileChannel.open(getUseLockFile(dir), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (lc.tryLock() == null || uc.tryLock() == null)
+                return false;
+            if (isDetachedLaunchRecent(dir)) {
+                log(LOG_VERBOSE, "Not evicting app cache " + dir + ", which may be in use by an application launched with " + PROP_TRAMPOLINE + " or " + PROP_EXEC);
+                return false;
+            }
+            log(LOG_VERBOSE, "Evicting app cache " + dir);
+            final Path target = Files.isSymbolicLink(dir) ? dir.resolveSibling(Files.readSymbolicLink(dir)) : null;
+            delete(dir);
+            if (target != null)
+                delete(target);
+            deleteStaleAppCaches(dir);
+            Files.deleteIfExists(getDetachedFile(dir));
+            return true;
+        } catch (OverlappingFileLockException e) {
+            return false; // in use by this JVM
+        }
+    }
+
+    /*
+     * Removes files in the shared store that are no longer linked from any app cache, and temporary files left by failed extractions.
+     * This may race with extractions in other processes, which store a file again if it's removed just before they link to it (see storeAndLink).
+     */
+    private void pruneSharedStore() throws IOException {
+        final Path store = getCacheDir().resolve(STORE_CACHE_NAME);
+        if (!Files.isDirectory(store))
+            return;
+        if (!Files.getFileStore(store).supportsFileAttributeView("unix")) {
+            log(LOG_VERBOSE, "File link counts are not available in " + store + "; not pruning the shared store");
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(store)) {
+            for (Path d : ds) {
+                try (DirectoryStream<Path> ds1 = Files.newDirectoryStream(d)) {
+                    for (Path f : ds1) {
+                        if (f.getFileName().toString().endsWith(STORE_TMP_SUFFIX)) {
+                            if (now - Files.getLastModifiedTime(f).toMillis() > STORE_TMP_GRACE) {
+                                log(LOG_DEBUG, "Removing stale " + f + " from the shared store");
+                                Files.deleteIfExists(f);
+                            }
+                            continue;
+                        }
+                        final int links;
+                        try {
+                            links = (Integer) Files.getAttribute(f, "unix:nlink");
+                        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                            log(LOG_VERBOSE, "File link counts are not available in " + store + " (" + e.getMessage() + "); not pruning the shared store");
+                            return;
+                        }
+                        if (links <= 1) {
+                            log(LOG_DEBUG, "Removing unused " + f + " from the shared store");
+                            Files.deleteIfExists(f);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static long getCacheQuota() {
+        final String quota = emptyToNull(getProperty(PROP_CACHE_QUOTA));
+        if (quota == null)
+            return -1;
+        try {
+            return parseSize(quota);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for " + PROP_CACHE_QUOTA + ": " + quota);
+        }
+    }
     //</editor-fold>
 
     //<editor-fold defaultstate="collapsed" desc="Script Process">
@@ -2296,10 +3393,67 @@ public class Capsule implements Runnable, InvocationHandler {
             command.add(cpstr);
         }
 
+        command.addAll(buildClassDataSharingArgs(command, cpstr));
+
         command.add(mainClass);
         return true;
     }
 
+    /*
+     * Java 13+ dumps the classes loaded by the app into a dynamic archive at exit (the "training" run), and Java 19+ does so
+     * automatically whenever the archive is missing or stale. The archive is kept in the app cache, so it's discarded along with it,
+     * and is named after (a hash of) the JVM and the classpath, which the JVM requires to match the ones used when it was created.
+     * Archives made for other JVMs or classpaths are deleted when a new one is created. If the JVM finds the archive unusable, it runs without it.
+     */
+    private List<String> buildClassDataSharingArgs(List<String> command, String classPath) {
+        if (!getAttribute(ATTR_CDS))
+            return Collections.emptyList();
+        if (getAppDir() == null || emptyToNull(getProperty(PROP_CAPSULE_JAVA_CMD)) != null
+                || oc.javaVersion == null || compareVersions(oc.javaVersion, "13") < 0) {
+            log(LOG_VERBOSE, "Class data sharing requires an extracted capsule and a known Java 13+ JVM; not using it.");
+            return Collections.emptyList();
+        }
+        for (String a : command) {
+            if (a.startsWith("-Xshare") || a.startsWith("-XX:SharedArchiveFile") || a.startsWith("-XX:ArchiveClassesAtExit")) {
+                log(LOG_VERBOSE, "Class data sharing configured by JVM argument " + a);
+                return Collections.emptyList();
+            }
+        }
+
+        final Path archive = getAppDir().resolve(CDS_ARCHIVE_PREFIX + getClassDataSharingKey(getJavaExecutable() + PATH_SEPARATOR + classPath) + ".jsa");
+        final String archiveFile = processOutgoingPath(archive);
+        final boolean exists = Files.exists(archive);
+        if (!exists)
+            deleteStaleClassDataSharingArchives(archive);
+        if (compareVersions(oc.javaVersion, "19") >= 0)
+            return Arrays.asList("-XX:+AutoCreateSharedArchive", "-XX:SharedArchiveFile=" + archiveFile);
+        if (exists)
+            return Arrays.asList("-XX:SharedArchiveFile=" + archiveFile);
+        log(LOG_VERBOSE, "Creating class data sharing archive " + archive);
+        return Arrays.asList(CDS_DUMP_ARG + archiveFile);
+    }
+
+    private static String getClassDataSharingKey(String s) {
+        try {
+            return toHexString(MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static void deleteStaleClassDataSharingArchives(Path archive) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(archive.getParent(), CDS_ARCHIVE_PREFIX + "*")) {
+            for (Path f : ds) {
+                if (!f.equals(archive)) {
+                    log(LOG_VERBOSE, "Deleting stale class data sharing archive " + f);
+                    Files.deleteIfExists(f);
+                }
+            }
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not delete stale class data sharing archives: " + e.getMessage());
+        }
+    }
+
     private void lookupAllDependencies() {
         final long start = clock();
         if (hasAttribute(ATTR_APP_ARTIFACT))
@@ -2317,7 +3471,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * and if not set, returns the value of {@code getJavaExecutable(getJavaHome())}.
      */
     protected Path getJavaExecutable() {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.getJavaExecutable() : getJavaExecutable0();
+        return (_ct = getCallTarget("getJavaExecutable")) != null ? _ct.getJavaExecutable() : getJavaExecutable0();
     }
 
     private Path getJavaExecutable0() {
@@ -2498,7 +3652,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * Returns the default native library path for the Java platform the application uses.
      */
     protected List<Path> getPlatformNativeLibraryPath() {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.getPlatformNativeLibraryPath() : getPlatformNativeLibraryPath0();
+        return (_ct = getCallTarget("getPlatformNativeLibraryPath")) != null ? _ct.getPlatformNativeLibraryPath() : getPlatformNativeLibraryPath0();
     }
 
     private List<Path> getPlatformNativeLibraryPath0() {
@@ -2606,6 +3760,7 @@ public class Capsule implements Runnable, InvocationHandler {
                 jhome = entry(getProperty(PROP_JAVA_VERSION), Paths.get(getProperty(PROP_JAVA_HOME)));
             oc.javaVersion = jhome.getKey();
             oc.javaHome = jhome.getValue();
+            clearAttributeCache(); // $JAVA_HOME
             log(LOG_VERBOSE, "Using JVM: " + oc.javaHome);
         }
         return oc.javaHome;
@@ -2617,7 +3772,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @return the path of the Java installation to use for launching the app and its version, or {@code null} if the current JVM is to be used.
      */
     protected Entry<String, Path> chooseJavaHome() {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.chooseJavaHome() : chooseJavaHome0();
+        return (_ct = getCallTarget("chooseJavaHome")) != null ? _ct.chooseJavaHome() : chooseJavaHome0();
     }
 
     private Entry<String, Path> chooseJavaHome0() {
@@ -2648,7 +3803,7 @@ public class Capsule implements Runnable, InvocationHandler {
     }
 
     private Entry<String, Path> findJavaHome(boolean jdk) {
-        Map<String, List<Path>> homes = nullToEmpty(getJavaHomes());
+        Map<String, List<Path>> homes = nullToEmpty(loadJavaHomes(getJvmRegistry()));
         Path bestPath = null;
         String bestVersion = null;
         for (Map.Entry<String, List<Path>> e : homes.entrySet()) {
@@ -2777,6 +3932,51 @@ public class Capsule implements Runnable, InvocationHandler {
         return entry(name, null);
     }
 
+    /**
+     * Excludes an attribute from the attribute cache, so that {@link #attribute(Map.Entry) attribute} will be called
+     * every time the attribute's value is requested.
+     * Caplets whose {@code attribute} override may return different values for the same attribute over the capsule's lifetime
+     * must call this method for that attribute during the caplet's static initialization.
+     *
+     * @param attr the attribute
+     * @return the attribute
+     */
+    protected static final <T> Entry<String, T> UNCACHED(Entry<String, T> attr) {
+        UNCACHED_ATTRIBS.add(attr.getKey());
+        return attr;
+    }
+
+    /*
+     * Parsed attribute values are cached per (attribute, mode, Java version).
+     * The platform is fixed for the lifetime of the process, so it isn't a part of the key.
+     */
+    private Map<String, Object> getAttributeCache() {
+        if (oc.attributeCache == null)
+            oc.attributeCache = new HashMap<>();
+        return oc.attributeCache;
+    }
+
+    private String attributeCacheKey(Entry<String, ?> attr) {
+        return name(attr) + '/' + getMode() + '/' + majorJavaVersion(oc.javaVersion);
+    }
+
+    // must be called whenever anything other than the mode and the Java version (e.g. the caplet chain) changes an attribute's value
+    private void clearAttributeCache() {
+        oc.attributeCache = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copyAttribute(T value) {
+        // callers (and caplets) may modify the collections they get
+        if (value instanceof List)
+            return (T) new ArrayList<Object>((List<?>) value);
+        if (value instanceof Set)
+            return (T) new LinkedHashSet<Object>((Set<?>) value);
+        if (value instanceof Map)
+            return (T) new LinkedHashMap<Object, Object>((Map<?, ?>) value);
+        return value;
+    }
+
     /**
      * Returns the value of the given manifest attribute with consideration to the capsule's mode.
      * If the attribute is not defined, its default value will be returned
@@ -2811,7 +4011,26 @@ public class Capsule implements Runnable, InvocationHandler {
         if (name(ATTR_CAPLETS).equals(name(attr)))
             return attribute0(attr);
         try {
-            T value = cc.attribute(attr);
+            final boolean cacheable = !UNCACHED_ATTRIBS.contains(name(attr));
+            final Map<String, Object> cache = cacheable ? getAttributeCache() : null;
+            final String key = cacheable ? attributeCacheKey(attr) : null;
+            T value;
+            if (cacheable) {
+                synchronized (cache) {
+                    if (cache.containsKey(key)) {
+                        value = copyAttribute(cast(attr, cache.get(key)));
+                        setContext("attribute", name(attr), value);
+                        return value;
+                    }
+                }
+            }
+            value = cc.attribute(attr);
+            if (cacheable && oc.attributeCache == cache) { // the cache hasn't been invalidated while computing the value
+                synchronized (cache) {
+                    cache.put(key, value);
+                }
+                value = copyAttribute(value);
+            }
             setContext("attribute", name(attr), value);
             return value;
         } catch (Exception e) {
@@ -3403,7 +4622,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @deprecated exclude from javadocs
      */
     protected Object lookup0(Object x, String type, Entry<String, ?> attrContext, Object context) {
-        _ct = unsafe(getCallTarget(Capsule.class));
+        _ct = unsafe(getCallTarget("lookup0"));
         final String target = (_ct != null ? _ct.getClass().getName() : Capsule.class.getName()) + '@' + Integer.toHexString(System.identityHashCode(_ct));
         log(LOG_DEBUG, "lookup0 " + target + " " + x);
         final Object res = _ct != null ? _ct.lookup0(x, type, attrContext, context) : lookup00(x, type, attrContext, context);
@@ -3481,7 +4700,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @deprecated exclude from javadocs
      */
     protected List<Path> resolve0(Object x) {
-        _ct = unsafe(getCallTarget(Capsule.class));
+        _ct = unsafe(getCallTarget("resolve0"));
         final String target = (_ct != null ? _ct.getClass().getName() : Capsule.class.getName()) + '@' + Integer.toHexString(System.identityHashCode(_ct));
         log(LOG_DEBUG, "resolve0 " + target + " " + x);
         final List<Path> res = _ct != null ? _ct.resolve0(x) : resolve00(x);
@@ -3644,6 +4863,259 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
+    private static List<String> getExtractedEntries(Map<String, long[]> index) {
+        final List<String> names = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : index.entrySet()) {
+            final String name = entry.getKey();
+            if (name.endsWith("/") || !shouldExtractFile(name))
+                continue;
+            if (entry.getValue()[ENTRY_DUPLICATES] > 0)
+                log(LOG_QUIET, "Warning: duplicate file " + name + " in capsule");
+            names.add(name);
+        }
+        return names;
+    }
+
+    /*
+     * Extracts the given entries, in parallel, straight from the JAR using its central directory index.
+     * Each worker pulls the next entry from the shared list, and reads the JAR through its own channel.
+     */
+    private void extractEntries(Path jar, Map<String, long[]> index, List<String> names, Path dir) throws IOException {
+        final long start = clock();
+        final int parallelism = Math.min(getExtractParallelism(), names.size());
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        oc.extraction = new Object[]{jar, index, names, dir, new AtomicInteger(), error, getSharedStore()};
+        try {
+            if (parallelism <= 1)
+                extractWorker();
+            else {
+                log(LOG_DEBUG, "Extracting " + names.size() + " entries with " + parallelism + " threads");
+                final List<Thread> workers = new ArrayList<>(parallelism);
+                for (int i = 0; i < parallelism; i++)
+                    workers.add(startThread("capsule-extract-" + i, "extractWorker"));
+                try {
+                    for (Thread t : workers)
+                        t.join();
+                } catch (InterruptedException e) {
+                    error.compareAndSet(null, e);
+                    Thread.currentThread().interrupt();
+                } finally {
+                    for (Thread t : workers)
+                        threads.remove(t.getName());
+                }
+            }
+        } finally {
+            oc.extraction = null;
+        }
+        if (error.get() instanceof IOException)
+            throw (IOException) error.get();
+        if (error.get() != null)
+            throw new IOException(error.get());
+        time("extractEntries", start);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void extractWorker() {
+        final Object[] task = oc.extraction;
+        final Path jar = (Path) task[0];
+        final Map<String, long[]> index = (Map<String, long[]>) task[1];
+        final List<String> names = (List<String>) task[2];
+        final Path dir = (Path) task[3];
+        final AtomicInteger next = (AtomicInteger) task[4];
+        final AtomicReference<Throwable> error = (AtomicReference<Throwable>) task[5];
+        final Path store = (Path) task[6];
+
+        final Inflater inflater = new Inflater(true);
+        try (SeekableByteChannel ch = Files.newByteChannel(jar)) {
+            final byte[] in = new byte[8192];
+            final byte[] out = new byte[8192];
+            final MessageDigest digest = store != null ? MessageDigest.getInstance("SHA-256") : null;
+            for (int i; error.get() == null && (i = next.getAndIncrement()) < names.size();) {
+                final String name = names.get(i);
+                try {
+                    if (store != null && name.endsWith(".jar")) {
+                        copyEntry(ch, index.get(name), null, digest, inflater, in, out);
+                        storeAndLink(store, toHexString(digest.digest()), ch, index.get(name), newFile(dir, name), inflater, in, out);
+                    } else {
+                        try (OutputStream os = Files.newOutputStream(newFile(dir, name), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                            copyEntry(ch, index.get(name), os, null, inflater, in, out);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IOException("Exception while extracting " + name, e);
+                }
+            }
+        } catch (Throwable t) {
+            error.compareAndSet(null, t);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static final int ZIP_LOC_SIG = 0x04034b50;
+    private static final int ZIP_LOC_LENGTH = 30;
+    private static final int ZIP_FLAG_DATA_DESCRIPTOR = 0x08;
+
+    /*
+     * Decompresses the entry into the given stream and/or digest (either may be null), and verifies its CRC.
+     */
+    private static void copyEntry(SeekableByteChannel ch, long[] entry, OutputStream os, MessageDigest digest, Inflater inflater, byte[] in, byte[] out) throws IOException {
+        final ByteBuffer loc = read(ch, entry[ENTRY_OFFSET], ZIP_LOC_LENGTH);
+        if (loc.getInt(0) != ZIP_LOC_SIG)
+            throw new ZipException("Bad local header");
+        ch.position(entry[ENTRY_OFFSET] + ZIP_LOC_LENGTH + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff));
+
+        final CRC32 crc = new CRC32();
+        long remaining = entry[ENTRY_COMPRESSED_SIZE];
+        if (entry[ENTRY_METHOD] == ZipEntry.STORED) {
+            while (remaining > 0) {
+                final int n = readFully(ch, in, (int) Math.min(remaining, in.length));
+                crc.update(in, 0, n);
+                if (os != null)
+                    os.write(in, 0, n);
+                if (digest != null)
+                    digest.update(in, 0, n);
+                remaining -= n;
+            }
+        } else if (entry[ENTRY_METHOD] == ZipEntry.DEFLATED) {
+            inflater.reset();
+            boolean dummy = false;
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (remaining > 0) {
+                            final int n = readFully(ch, in, (int) Math.min(remaining, in.length));
+                            inflater.setInput(in, 0, n);
+                            remaining -= n;
+                        } else if (!dummy) { // the inflater may require an extra byte when no header is used
+                            in[0] = 0;
+                            inflater.setInput(in, 0, 1);
+                            dummy = true;
+                        } else
+                            throw new EOFException("Unexpected end of ZIP entry");
+                    }
+                    final int n = inflater.inflate(out);
+                    crc.update(out, 0, n);
+                    if (os != null)
+                        os.write(out, 0, n);
+                    if (digest != null)
+                        digest.update(out, 0, n);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+        } else
+            throw new ZipException("Unsupported compression method " + entry[ENTRY_METHOD]);
+
+        if (crc.getValue() != entry[ENTRY_CRC])
+            throw new ZipException("Invalid entry CRC");
+    }
+
+    /*
+     * Files in the shared store are named by the SHA-256 of their content. The entry is hashed first (which doesn't write anything),
+     * and is only written to the store if it isn't there already, via a temporary file that is atomically moved into place.
+     * As a store file is hard-linked into every app cache that uses it, it is made read-only, and an existing one is only reused
+     * if its size and CRC still match the entry's; otherwise, it is replaced (app caches already linked to it keep the changed file).
+     */
+    private static Path storeEntry(Path store, String hash, SeekableByteChannel ch, long[] entry, Inflater inflater, byte[] in, byte[] out) throws IOException {
+        final Path stored = store.resolve(hash.substring(0, 2)).resolve(hash);
+        if (Files.isRegularFile(stored)) {
+            if (isStoredEntry(stored, entry, in)) {
+                if (Files.isWritable(stored))
+                    removeWritePermissions(stored); // stored by an older version
+                return stored;
+            }
+            log(LOG_VERBOSE, "Shared store file " + stored + " has been modified; storing it again");
+        }
+
+        Files.createDirectories(stored.getParent());
+        final Path tmp = Files.createTempFile(stored.getParent(), hash, STORE_TMP_SUFFIX);
+        try {
+            try (OutputStream os = Files.newOutputStream(tmp, StandardOpenOption.WRITE)) {
+                copyEntry(ch, entry, os, null, inflater, in, out);
+            }
+            removeWritePermissions(tmp);
+            Files.move(tmp, stored, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING); // a concurrent writer would have written the same content
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return stored;
+    }
+
+    private static boolean isStoredEntry(Path file, long[] entry, byte[] buffer) throws IOException {
+        if (Files.size(file) != entry[ENTRY_SIZE])
+            return false;
+        final CRC32 crc = new CRC32();
+        try (InputStream is = Files.newInputStream(file)) {
+            for (int n; (n = is.read(buffer)) >= 0;)
+                crc.update(buffer, 0, n);
+        }
+        return crc.getValue() == entry[ENTRY_CRC];
+    }
+
+    private static void removeWritePermissions(Path file) {
+        try {
+            final Set<PosixFilePermission> perms = new HashSet<>(Files.getPosixFilePermissions(file));
+            if (perms.removeAll(EnumSet.of(PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE)))
+                Files.setPosixFilePermissions(file, perms);
+        } catch (UnsupportedOperationException | IOException e) {
+            log(LOG_DEBUG, "Could not make " + file + " read-only: " + e.getMessage());
+        }
+    }
+
+    /*
+     * A store file can be removed by a prune in another process after storeEntry finds it and before it is linked (or, if it is
+     * being written, before it is moved into place), in which case it is stored again.
+     */
+    private static void storeAndLink(Path store, String hash, SeekableByteChannel ch, long[] entry, Path file, Inflater inflater, byte[] in, byte[] out) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                link(storeEntry(store, hash, ch, entry, inflater, in, out), file);
+                return;
+            } catch (NoSuchFileException e) {
+                if (attempt >= STORE_ATTEMPTS)
+                    throw e;
+                log(LOG_DEBUG, "Shared store file " + hash + " was removed while linking to it (" + e.getMessage() + "); storing it again");
+            }
+        }
+    }
+
+    private Path getSharedStore() throws IOException {
+        if (!systemPropertyEmptyOrTrue(PROP_SHARED_STORE))
+            return null;
+        final Path store = getCacheDir().resolve(STORE_CACHE_NAME);
+        try {
+            Files.createDirectories(store, getPermissions(getExistingAncestor(store)));
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not create shared store " + store + " (" + e.getMessage() + "); not using it.");
+            return null;
+        }
+        return store;
+    }
+
+    private static int readFully(SeekableByteChannel ch, byte[] buffer, int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(buffer, 0, length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0)
+                throw new EOFException("Unexpected end of ZIP entry");
+        }
+        return length;
+    }
+
+    private static int getExtractParallelism() {
+        final String parallelism = emptyToNull(getProperty(PROP_EXTRACT_PARALLELISM));
+        if (parallelism != null) {
+            try {
+                final int n = Integer.parseInt(parallelism);
+                if (n > 0)
+                    return n;
+            } catch (NumberFormatException e) {
+            }
+            throw new IllegalArgumentException("Illegal value for " + PROP_EXTRACT_PARALLELISM + ": " + parallelism);
+        }
+        return Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_EXTRACT_PARALLELISM);
+    }
+
     private static boolean shouldExtractFile(String fileName) {
         if (fileName.equals(Capsule.class.getName().replace('.', '/') + ".class")
             || (fileName.startsWith(Capsule.class.getName().replace('.', '/') + "$") && fileName.endsWith(".class")))
@@ -3661,10 +5133,10 @@ public class Capsule implements Runnable, InvocationHandler {
         final long start = clock();
         final List<Path> res = new ArrayList<>();
         final Pattern p = Pattern.compile(globToRegex(glob));
-        try (ZipInputStream zis = openJarInputStream(jar)) {
-            for (ZipEntry entry; (entry = zis.getNextEntry()) != null;) {
-                if ((!regular || !entry.isDirectory()) && p.matcher(entry.getName()).matches())
-                    res.add(path(entry.getName())); // new URL("jar", "", jar + "!/" + entry.getName())
+        try {
+            for (String entry : cachedEntries(jar)) {
+                if ((!regular || !entry.endsWith("/")) && p.matcher(entry).matches())
+                    res.add(path(entry)); // new URL("jar", "", jar + "!/" + entry)
             }
         } catch (IOException e) {
             throw rethrow(e);
@@ -3680,73 +5152,246 @@ public class Capsule implements Runnable, InvocationHandler {
                 return outCapsule;
             }
 
-            final String wrapperVersion = VERSION;
-            final String wrappedVersion;
-            try {
-                wrappedVersion = getCapsuleVersion(newClassLoader(null, wrapperCapsule).loadClass(Capsule.class.getName()));
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(wrapperCapsule + " is not a valid capsule");
+            final String wrapperVersion = VERSION;
+            final String wrappedVersion;
+            try {
+                wrappedVersion = getCapsuleVersion(newClassLoader(null, wrapperCapsule).loadClass(Capsule.class.getName()));
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(wrapperCapsule + " is not a valid capsule");
+            }
+            if (wrappedVersion == null)
+                throw new RuntimeException(wrapperCapsule + " is not a valid capsule");
+            if (Integer.parseInt(getBefore(wrapperVersion, '.')) != Integer.parseInt(getBefore(wrappedVersion, '.')))
+                throw new RuntimeException("Incompatible Capsule versions: " + wrapperCapsule + " (" + wrapperVersion + "), " + wrappedCapsule + " (" + wrappedVersion + ")");
+            final int higherVersion = compareVersions(wrapperVersion, wrappedVersion);
+
+            final Manifest wrManifest = getManifest(wrapperCapsule);
+            final Manifest man = new Manifest(getManifest(wrappedCapsule));
+
+            final String wrMainClass = wrManifest.getMainAttributes().getValue(ATTR_MAIN_CLASS);
+            if (!Capsule.class.getName().equals(wrMainClass)) {
+                if (higherVersion < 0)
+                    throw new RuntimeException("Main class of wrapper capsule " + wrapperCapsule + " (" + wrMainClass + ") is not " + Capsule.class.getName()
+                                               + " and is of lower version ( " + wrapperVersion + ") than that of the wrapped capsule " + wrappedCapsule + " (" + wrappedVersion + "). Cannot merge.");
+                man.getMainAttributes().putValue(ATTR_MAIN_CLASS, wrMainClass);
+            }
+
+            final List<String> wrCaplets = nullToEmpty(parse(wrManifest.getMainAttributes().getValue(name(ATTR_CAPLETS))));
+            final ArrayList<String> caplets = new ArrayList<>(nullToEmpty(parse(man.getMainAttributes().getValue(name(ATTR_CAPLETS)))));
+            addAllIfAbsent(caplets, wrCaplets);
+
+            man.getMainAttributes().putValue(name(ATTR_CAPLETS), join(caplets, " "));
+
+            final Path first = higherVersion >= 0 ? wrapperCapsule : wrappedCapsule;
+            final Path second = higherVersion < 0 ? wrapperCapsule : wrappedCapsule;
+            if (!mergeJarsRaw(wrappedCapsule, first, second, man, outCapsule))
+                mergeJarStreams(wrapperCapsule, wrappedCapsule, higherVersion >= 0, man, outCapsule);
+
+            log(LOG_VERBOSE, "Testing capsule " + outCapsule);
+            newCapsule0(newClassLoader(ClassLoader.getSystemClassLoader(), outCapsule), outCapsule); // test capsule
+            log(LOG_VERBOSE, "Done testing capsule " + outCapsule);
+
+            return outCapsule;
+        } catch (Exception e) {
+            try {
+                Files.delete(outCapsule);
+            } catch (IOException ex) {
+            }
+            throw e;
+        }
+    }
+
+    /*
+     * Merges the JARs by copying their entries' compressed data as it is, after the prefix of the wrapped capsule. Only the manifest,
+     * which is written first, is compressed anew. The local headers are copied with their CRC and sizes, taken from the central
+     * directory, filled in (so entries are no longer followed by data descriptors), and offsets are relative to the start of the ZIP.
+     * Instead of reading the result again, its central directory is compared with the one written.
+     * Returns false, without writing anything, if the JARs' central directories can't be used or the result would require ZIP64.
+     */
+    private static boolean mergeJarsRaw(Path wrapped, Path first, Path second, Manifest man, Path outCapsule) throws IOException {
+        final Map<String, long[]> firstIndex = getJarIndex(first);
+        final Map<String, long[]> secondIndex = getJarIndex(second);
+        if (firstIndex.containsValue(null) || secondIndex.containsValue(null)
+            || firstIndex.size() + secondIndex.size() >= 0xffff || Files.size(first) + Files.size(second) >= 0xffffffffL - 0xffffff)
+            return false;
+
+        final long start = clock();
+        final Map<String, long[]> written = new LinkedHashMap<>();
+        final ByteArrayOutputStream cen = new ByteArrayOutputStream();
+        try (SeekableByteChannel out = Files.newByteChannel(outCapsule, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long prefix = Long.MAX_VALUE;
+            for (long[] entry : getJarIndex(wrapped).values())
+                prefix = Math.min(prefix, entry[ENTRY_OFFSET]);
+            if (prefix == Long.MAX_VALUE)
+                prefix = 0;
+            try (SeekableByteChannel in = Files.newByteChannel(wrapped)) {
+                transfer(in, 0, prefix, out);
+            }
+
+            writeManifestEntry(out, prefix, man, cen, written);
+            final Set<String> copied = new HashSet<>(asList(MANIFEST_NAME, "META-INF/"));
+            copyEntriesRaw(first, firstIndex, out, prefix, copied, cen, written);
+            copyEntriesRaw(second, secondIndex, out, prefix, copied, cen, written);
+
+            final long cenOffset = out.position() - prefix;
+            writeFully(out, ByteBuffer.wrap(cen.toByteArray()));
+            final ByteBuffer end = ByteBuffer.allocate(ZIP_END_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(ZIP_END_SIG).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) written.size()).putShort((short) written.size())
+                    .putInt(cen.size()).putInt((int) cenOffset).putShort((short) 0);
+            end.flip();
+            writeFully(out, end);
+        }
+        time("mergeJarsRaw", start);
+
+        final Map<String, long[]> index = readCentralDirectory(outCapsule, Files.size(outCapsule));
+        if (index == null || !new ArrayList<>(index.keySet()).equals(new ArrayList<>(written.keySet())))
+            throw new ZipException("Corrupt central directory in " + outCapsule);
+        for (Map.Entry<String, long[]> e : written.entrySet()) {
+            if (!Arrays.equals(e.getValue(), index.get(e.getKey())))
+                throw new ZipException("Corrupt entry " + e.getKey() + " in " + outCapsule);
+        }
+        return true;
+    }
+
+    private static void copyEntriesRaw(Path jar, Map<String, long[]> index, SeekableByteChannel out, long prefix, Set<String> copied,
+                                       ByteArrayOutputStream cen, Map<String, long[]> written) throws IOException {
+        try (SeekableByteChannel in = Files.newByteChannel(jar)) {
+            for (Map.Entry<String, long[]> e : index.entrySet()) {
+                if (!copied.add(e.getKey()))
+                    continue;
+                final long[] entry = e.getValue();
+                final ByteBuffer loc = read(in, entry[ENTRY_OFFSET], ZIP_LOC_LENGTH);
+                if (loc.getInt(0) != ZIP_LOC_SIG)
+                    throw new ZipException("Bad local header for " + e.getKey() + " in " + jar);
+                final int headerLength = ZIP_LOC_LENGTH + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+                final ByteBuffer header = read(in, entry[ENTRY_OFFSET], headerLength);
+                header.putShort(6, (short) (header.getShort(6) & ~ZIP_FLAG_DATA_DESCRIPTOR));
+                header.putInt(14, (int) entry[ENTRY_CRC]);
+                header.putInt(18, (int) entry[ENTRY_COMPRESSED_SIZE]);
+                header.putInt(22, (int) entry[ENTRY_SIZE]);
+
+                writeEntryHeader(out, prefix, header, cen, e.getKey(), written);
+                transfer(in, entry[ENTRY_OFFSET] + headerLength, entry[ENTRY_COMPRESSED_SIZE], out);
             }
-            if (wrappedVersion == null)
-                throw new RuntimeException(wrapperCapsule + " is not a valid capsule");
-            if (Integer.parseInt(getBefore(wrapperVersion, '.')) != Integer.parseInt(getBefore(wrappedVersion, '.')))
-                throw new RuntimeException("Incompatible Capsule versions: " + wrapperCapsule + " (" + wrapperVersion + "), " + wrappedCapsule + " (" + wrappedVersion + ")");
-            final int higherVersion = compareVersions(wrapperVersion, wrappedVersion);
+        }
+    }
 
-            try (final OutputStream os = Files.newOutputStream(outCapsule);
-                 final JarInputStream wr = openJarInputStream(wrapperCapsule);
-                 final JarInputStream wd = copyJarPrefix(Files.newInputStream(wrappedCapsule), os)) {
+    private static void writeManifestEntry(SeekableByteChannel out, long prefix, Manifest man, ByteArrayOutputStream cen, Map<String, long[]> written) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        man.write(bytes);
+        final byte[] data = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater)) {
+            dos.write(data);
+        } finally {
+            deflater.end();
+        }
 
-                final JarInputStream first = higherVersion >= 0 ? wr : wd;
-                final JarInputStream second = higherVersion < 0 ? wr : wd;
+        final byte[] name = MANIFEST_NAME.getBytes("UTF-8");
+        final ByteBuffer header = ByteBuffer.allocate(ZIP_LOC_LENGTH + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ZIP_LOC_SIG).putShort((short) 20).putShort((short) 0).putShort((short) ZipEntry.DEFLATED)
+                .putInt((int) dosTime(System.currentTimeMillis()))
+                .putInt((int) crc.getValue()).putInt(compressed.size()).putInt(data.length)
+                .putShort((short) name.length).putShort((short) 0).put(name);
+        header.flip();
 
-                final Manifest man = new Manifest(wd.getManifest());
+        writeEntryHeader(out, prefix, header, cen, MANIFEST_NAME, written);
+        writeFully(out, ByteBuffer.wrap(compressed.toByteArray()));
+    }
 
-                final String wrMainClass = wr.getManifest().getMainAttributes().getValue(ATTR_MAIN_CLASS);
-                if (!Capsule.class.getName().equals(wrMainClass)) {
-                    if (first != wr)
-                        throw new RuntimeException("Main class of wrapper capsule " + wrapperCapsule + " (" + wrMainClass + ") is not " + Capsule.class.getName()
-                                                   + " and is of lower version ( " + wrapperVersion + ") than that of the wrapped capsule " + wrappedCapsule + " (" + wrappedVersion + "). Cannot merge.");
-                    man.getMainAttributes().putValue(ATTR_MAIN_CLASS, wrMainClass);
-                }
+    /*
+     * Writes the given local header, and adds the entry's central directory record, which contains the same information
+     * (without the extra field, and with no file attributes, like that written by JarOutputStream).
+     */
+    private static void writeEntryHeader(SeekableByteChannel out, long prefix, ByteBuffer header, ByteArrayOutputStream cen, String name, Map<String, long[]> written) throws IOException {
+        final long offset = out.position();
+        final int nameLength = header.getShort(26) & 0xffff;
+        final ByteBuffer record = ByteBuffer.allocate(ZIP_CEN_LENGTH + nameLength).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(ZIP_CEN_SIG).putShort((short) 20);
+        for (int i = 4; i < 26; i++) // version needed, flags, method, time, date, CRC, sizes
+            record.put(header.get(i));
+        record.putShort((short) nameLength).putShort((short) 0).putShort((short) 0) // name, extra and comment lengths
+                .putShort((short) 0).putShort((short) 0).putInt(0) // disk number, internal and external attributes
+                .putInt((int) (offset - prefix));
+        for (int i = 0; i < nameLength; i++)
+            record.put(header.get(ZIP_LOC_LENGTH + i));
+        cen.write(record.array(), 0, record.position());
+
+        written.put(name, new long[]{offset, header.getShort(8) & 0xffff, header.getInt(18) & 0xffffffffL, header.getInt(22) & 0xffffffffL, header.getInt(14) & 0xffffffffL, 0});
+        writeFully(out, header);
+    }
+
+    private static void transfer(SeekableByteChannel in, long position, long count, SeekableByteChannel out) throws IOException {
+        if (in instanceof FileChannel && out instanceof FileChannel) {
+            while (count > 0) {
+                final long n = ((FileChannel) in).transferTo(position, count, (FileChannel) out);
+                if (n <= 0)
+                    break;
+                position += n;
+                count -= n;
+            }
+        }
+        in.position(position);
+        final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, 1 << 16));
+        while (count > 0) {
+            buf.clear();
+            buf.limit((int) Math.min(count, buf.capacity()));
+            if (in.read(buf) < 0)
+                throw new EOFException();
+            buf.flip();
+            count -= buf.remaining();
+            writeFully(out, buf);
+        }
+    }
 
-                final List<String> wrCaplets = nullToEmpty(parse(wr.getManifest().getMainAttributes().getValue(name(ATTR_CAPLETS))));
-                final ArrayList<String> caplets = new ArrayList<>(nullToEmpty(parse(man.getMainAttributes().getValue(name(ATTR_CAPLETS)))));
-                addAllIfAbsent(caplets, wrCaplets);
+    private static void writeFully(SeekableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
 
-                man.getMainAttributes().putValue(name(ATTR_CAPLETS), join(caplets, " "));
+    private static long dosTime(long time) {
+        final Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        final int year = c.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+               | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
 
-                try (final JarOutputStream out = new JarOutputStream(os, man)) {
-                    final Set<String> copied = new HashSet<>();
-                    for (JarEntry entry; (entry = first.getNextJarEntry()) != null;) {
-                        if (!entry.getName().equals(MANIFEST_NAME)) {
-                            out.putNextEntry(new JarEntry(entry));
-                            copy(first, out);
-                            out.closeEntry();
-                            copied.add(entry.getName());
-                        }
+    /*
+     * Merges the JARs by inflating and deflating all entries; used when the JARs' central directories can't be used.
+     */
+    private static void mergeJarStreams(Path wrapperCapsule, Path wrappedCapsule, boolean wrapperFirst, Manifest man, Path outCapsule) throws IOException {
+        try (final OutputStream os = Files.newOutputStream(outCapsule);
+             final JarInputStream wr = openJarInputStream(wrapperCapsule);
+             final JarInputStream wd = copyJarPrefix(Files.newInputStream(wrappedCapsule), os)) {
+
+            final JarInputStream first = wrapperFirst ? wr : wd;
+            final JarInputStream second = wrapperFirst ? wd : wr;
+
+            try (final JarOutputStream out = new JarOutputStream(os, man)) {
+                final Set<String> copied = new HashSet<>();
+                for (JarEntry entry; (entry = first.getNextJarEntry()) != null;) {
+                    if (!entry.getName().equals(MANIFEST_NAME)) {
+                        out.putNextEntry(new JarEntry(entry));
+                        copy(first, out);
+                        out.closeEntry();
+                        copied.add(entry.getName());
                     }
-                    for (JarEntry entry; (entry = second.getNextJarEntry()) != null;) {
-                        if (!entry.getName().equals(MANIFEST_NAME) && !copied.contains(entry.getName())) {
-                            out.putNextEntry(new JarEntry(entry));
-                            copy(second, out);
-                            out.closeEntry();
-                        }
+                }
+                for (JarEntry entry; (entry = second.getNextJarEntry()) != null;) {
+                    if (!entry.getName().equals(MANIFEST_NAME) && !copied.contains(entry.getName())) {
+                        out.putNextEntry(new JarEntry(entry));
+                        copy(second, out);
+                        out.closeEntry();
                     }
-
-                    log(LOG_VERBOSE, "Testing capsule " + outCapsule);
-                    newCapsule0(newClassLoader(ClassLoader.getSystemClassLoader(), outCapsule), outCapsule); // test capsule
-                    log(LOG_VERBOSE, "Done testing capsule " + outCapsule);
-
-                    return outCapsule;
                 }
             }
-        } catch (Exception e) {
-            try {
-                Files.delete(outCapsule);
-            } catch (IOException ex) {
-            }
-            throw e;
         }
     }
     //</editor-fold>
@@ -3917,7 +5562,13 @@ public class Capsule implements Runnable, InvocationHandler {
     }
 
     protected static InputStream getEntryInputStream(Path jar, String name) throws IOException {
-        return getEntry(openJarInputStream(jar), name);
+        final Map<String, long[]> index = getJarIndex(jar);
+        if (!index.containsKey(name))
+            return null;
+        final long[] entry = index.get(name);
+        if (entry == null)
+            return getEntry(openJarInputStream(jar), name);
+        return openEntry(jar, entry);
     }
 
     private static InputStream getEntry(ZipInputStream zis, String name) throws IOException {
@@ -3939,27 +5590,163 @@ public class Capsule implements Runnable, InvocationHandler {
     }
 
     private static Manifest getManifest(Path jar) {
-        try (JarInputStream jis = openJarInputStream(jar)) {
-            return jis.getManifest();
+        try {
+            return readManifest(jar);
         } catch (IOException e) {
             throw new RuntimeException("Error reading manifest from " + jar, e);
         }
     }
 
-    private static Map<Path, List<String>> jarEntriesCache = new HashMap<>();
+    private static Manifest readManifest(Path jar) throws IOException {
+        final long[] entry = getJarIndex(jar).get(MANIFEST_NAME);
+        if (entry == null) {
+            try (JarInputStream jis = openJarInputStream(jar)) {
+                return jis.getManifest();
+            }
+        }
+        try (InputStream is = openEntry(jar, entry)) {
+            return new Manifest(is);
+        }
+    }
 
     private static Iterable<String> cachedEntries(Path jar) throws IOException {
-        final Map<Path, List<String>> cache = jarEntriesCache;
-        if (cache != null && cache.containsKey(jar))
-            return cache.get(jar);
-        final List<String> entries = new ArrayList<>();
-        try (ZipInputStream zis = openJarInputStream(jar)) {
-            for (ZipEntry entry; (entry = zis.getNextEntry()) != null;)
-                entries.add(entry.getName());
+        return getJarIndex(jar).keySet();
+    }
+
+    private static boolean hasEntry(Path jar, String name) throws IOException {
+        return getJarIndex(jar).containsKey(name);
+    }
+
+    /*
+     * A JAR's index maps the names of all of its entries, in order, to {local header offset, compression method, compressed size, size, CRC, duplicates},
+     * as found in the ZIP central directory, so that entries can be read without a pass over the whole file.
+     * The offsets take into account any prefix prepended to the ZIP (like the shell script in a "really executable" capsule).
+     * If the central directory can't be used (e.g. ZIP64), the names are collected by reading the JAR sequentially, and mapped to null.
+     */
+    private static final Map<Path, Object[]> jarIndexCache = new HashMap<>(); // jar -> {mtime, size, index}
+
+    private static final int ENTRY_OFFSET = 0;
+    private static final int ENTRY_METHOD = 1;
+    private static final int ENTRY_COMPRESSED_SIZE = 2;
+    private static final int ENTRY_SIZE = 3;
+    private static final int ENTRY_CRC = 4;
+    private static final int ENTRY_DUPLICATES = 5; // the number of additional entries with the same name (which are ignored)
+
+    private static final int ZIP_END_SIG = 0x06054b50;
+    private static final int ZIP_END_LENGTH = 22;
+    private static final int ZIP_CEN_SIG = 0x02014b50;
+    private static final int ZIP_CEN_LENGTH = 46;
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, long[]> getJarIndex(Path jar) throws IOException {
+        final FileTime mtime = Files.getLastModifiedTime(jar);
+        final long size = Files.size(jar);
+        synchronized (jarIndexCache) {
+            final Object[] cached = jarIndexCache.get(jar);
+            if (cached != null && mtime.equals(cached[0]) && size == (Long) cached[1])
+                return (Map<String, long[]>) cached[2];
+        }
+
+        final long start = clock();
+        Map<String, long[]> index = readCentralDirectory(jar, size);
+        if (index == null) {
+            index = new LinkedHashMap<>();
+            try (ZipInputStream zis = openJarInputStream(jar)) {
+                for (ZipEntry entry; (entry = zis.getNextEntry()) != null;) {
+                    if (!index.containsKey(entry.getName()))
+                        index.put(entry.getName(), null);
+                }
+            }
+        }
+        index = Collections.unmodifiableMap(index);
+        time("Index JAR " + jar, start);
+
+        synchronized (jarIndexCache) {
+            jarIndexCache.put(jar, new Object[]{mtime, size, index});
+        }
+        return index;
+    }
+
+    private static Map<String, long[]> readCentralDirectory(Path jar, long size) throws IOException {
+        try (SeekableByteChannel ch = Files.newByteChannel(jar)) {
+            final int tailLength = (int) Math.min(size, ZIP_END_LENGTH + 0xFFFF); // the end record may be followed by a comment
+            final ByteBuffer tail = read(ch, size - tailLength, tailLength);
+            int end = -1;
+            for (int i = tailLength - ZIP_END_LENGTH; i >= 0; i--) {
+                if (tail.getInt(i) == ZIP_END_SIG) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0)
+                return null;
+
+            final int count = tail.getShort(end + 10) & 0xffff;
+            final long cenSize = tail.getInt(end + 12) & 0xffffffffL;
+            final long cenOffset = tail.getInt(end + 16) & 0xffffffffL;
+            if (count == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL)
+                return null; // ZIP64
+            final long cenPos = size - tailLength + end - cenSize;
+            final long prefix = cenPos - cenOffset; // the length of whatever precedes the ZIP
+            if (cenPos < 0 || prefix < 0)
+                return null;
+
+            final ByteBuffer cen = read(ch, cenPos, (int) cenSize);
+            final Map<String, long[]> index = new LinkedHashMap<>(count * 4 / 3 + 1);
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                if (pos + ZIP_CEN_LENGTH > cen.limit() || cen.getInt(pos) != ZIP_CEN_SIG)
+                    return null;
+                final long method = cen.getShort(pos + 10) & 0xffff;
+                final long crc = cen.getInt(pos + 16) & 0xffffffffL;
+                final long compressedSize = cen.getInt(pos + 20) & 0xffffffffL;
+                final long entrySize = cen.getInt(pos + 24) & 0xffffffffL;
+                final int nameLength = cen.getShort(pos + 28) & 0xffff;
+                final int extraLength = cen.getShort(pos + 30) & 0xffff;
+                final int commentLength = cen.getShort(pos + 32) & 0xffff;
+                final long offset = cen.getInt(pos + 42) & 0xffffffffL;
+                if (compressedSize == 0xffffffffL || entrySize == 0xffffffffL || offset == 0xffffffffL)
+                    return null; // ZIP64
+
+                final byte[] name = new byte[nameLength];
+                cen.position(pos + ZIP_CEN_LENGTH);
+                cen.get(name);
+                final String entryName = new String(name, "UTF-8");
+                final long[] existing = index.get(entryName);
+                if (existing == null)
+                    index.put(entryName, new long[]{prefix + offset, method, compressedSize, entrySize, crc, 0});
+                else
+                    existing[ENTRY_DUPLICATES]++;
+                pos += ZIP_CEN_LENGTH + nameLength + extraLength + commentLength;
+            }
+            return index;
+        }
+    }
+
+    private static ByteBuffer read(SeekableByteChannel ch, long position, int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        ch.position(position);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0)
+                throw new EOFException();
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static ZipInputStream openEntry(Path jar, long[] entry) throws IOException {
+        // the stream is positioned at the entry's local header, and ends with the entry
+        final SeekableByteChannel ch = Files.newByteChannel(jar);
+        try {
+            ch.position(entry[ENTRY_OFFSET]);
+            final ZipInputStream zis = new ZipInputStream(Channels.newInputStream(ch));
+            if (zis.getNextEntry() == null)
+                throw new IOException("Corrupt JAR file " + jar);
+            return zis;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
         }
-        if (cache != null)
-            cache.put(jar, entries);
-        return entries;
     }
 
     private static final int[] ZIP_HEADER = new int[]{'P', 'K', 0x03, 0x04};
@@ -3994,13 +5781,15 @@ public class Capsule implements Runnable, InvocationHandler {
     //<editor-fold defaultstate="collapsed" desc="File Utils">
     /////////// File Utils ///////////////////////////////////
     private static void writeFile(Path targetDir, String fileName, InputStream is) throws IOException {
+        Files.copy(is, newFile(targetDir, fileName));
+    }
+
+    private static Path newFile(Path targetDir, String fileName) throws IOException {
         fileName = toNativePath(fileName);
         final String dir = getDirectory(fileName);
         if (dir != null)
             Files.createDirectories(targetDir.resolve(dir));
-
-        final Path targetFile = targetDir.resolve(fileName);
-        Files.copy(is, targetFile);
+        return targetDir.resolve(fileName);
     }
 
     private static String toNativePath(String filename) {
@@ -4022,9 +5811,9 @@ public class Capsule implements Runnable, InvocationHandler {
      */
     static void delete(Path path) throws IOException {
         log(LOG_DEBUG, "Deleting " + path);
-        if (!Files.exists(path))
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS))
             return;
-        if (Files.isDirectory(path)) {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
             try (DirectoryStream<Path> ds = Files.newDirectoryStream(path)) {
                 for (Path f : ds)
                     delete(f);
@@ -4033,6 +5822,33 @@ public class Capsule implements Runnable, InvocationHandler {
         Files.delete(path);
     }
 
+    /**
+     * Returns the total size of all regular files under the given directory (recursively).
+     */
+    private static long size(Path dir) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path f : ds) {
+                if (Files.isDirectory(f, LinkOption.NOFOLLOW_LINKS))
+                    size += size(f);
+                else if (Files.isRegularFile(f, LinkOption.NOFOLLOW_LINKS))
+                    size += Files.size(f);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Creates a hard link to the given file, or, if that's not possible, copies it.
+     */
+    private static void link(Path existing, Path link) throws IOException {
+        try {
+            Files.createLink(link, existing);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(existing, link, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
     /**
      * Copies the source file or directory (recursively) to the target location.
      */
@@ -4120,19 +5936,24 @@ public class Capsule implements Runnable, InvocationHandler {
      * @return a map from installations' versions to their respective (possibly multiple) paths
      */
     protected static Map<String, List<Path>> getJavaHomes() {
+        return loadJavaHomes(null);
+    }
+
+    private static Map<String, List<Path>> loadJavaHomes(Path registry) {
         if (JAVA_HOMES == null) {
             try {
-                Path homesDir = null;
-                for (Path d = Paths.get(getProperty(PROP_JAVA_HOME)); d != null; d = d.getParent()) {
-                    if (d.getFileName() != null && isJavaDir(d.getFileName().toString()) != null) {
-                        homesDir = d.getParent();
-                        break;
-                    }
+                final long start = clock();
+                final List<Path> dirs = getJavaHomesDirs();
+                Map<String, List<Path>> homes = registry != null ? readJvmRegistry(registry, dirs) : null;
+                if (homes == null && !dirs.isEmpty()) {
+                    homes = new HashMap<>();
+                    for (Path dir : dirs)
+                        multiputAll(homes, nullToEmpty(getJavaHomes(dir)));
+                    if (registry != null)
+                        writeJvmRegistry(registry, dirs, homes);
                 }
-                Map<String, List<Path>> homes = getJavaHomes(homesDir);
-                if (homes != null && isWindows())
-                    homes = windowsJavaHomesHeuristics(homesDir, homes);
                 JAVA_HOMES = homes;
+                time("getJavaHomes", start);
             } catch (IOException e) {
                 throw rethrow(e);
             }
@@ -4140,24 +5961,117 @@ public class Capsule implements Runnable, InvocationHandler {
         return JAVA_HOMES;
     }
 
-    private static Map<String, List<Path>> windowsJavaHomesHeuristics(Path dir, Map<String, List<Path>> homes) throws IOException {
-        Path dir2 = null;
-        if (dir.startsWith(WINDOWS_PROGRAM_FILES_1))
-            dir2 = WINDOWS_PROGRAM_FILES_2.resolve(WINDOWS_PROGRAM_FILES_1.relativize(dir));
-        else if (dir.startsWith(WINDOWS_PROGRAM_FILES_2))
-            dir2 = WINDOWS_PROGRAM_FILES_1.resolve(WINDOWS_PROGRAM_FILES_2.relativize(dir));
-        if (dir2 != null) {
-            Map<String, List<Path>> allHomes = new HashMap<>(nullToEmpty(homes));
-            multiputAll(allHomes, nullToEmpty(getJavaHomes(dir2)));
-            return allHomes;
-        } else
+    /**
+     * The directories searched for Java installations.
+     */
+    private static List<Path> getJavaHomesDirs() {
+        Path homesDir = null;
+        for (Path d = Paths.get(getProperty(PROP_JAVA_HOME)); d != null; d = d.getParent()) {
+            if (d.getFileName() != null && isJavaDir(d.getFileName().toString()) != null) {
+                homesDir = d.getParent();
+                break;
+            }
+        }
+        final List<Path> dirs = new ArrayList<>();
+        if (homesDir == null || !Files.isDirectory(homesDir))
+            return dirs;
+        dirs.add(homesDir);
+        if (isWindows()) {
+            Path dir2 = null;
+            if (homesDir.startsWith(WINDOWS_PROGRAM_FILES_1))
+                dir2 = WINDOWS_PROGRAM_FILES_2.resolve(WINDOWS_PROGRAM_FILES_1.relativize(homesDir));
+            else if (homesDir.startsWith(WINDOWS_PROGRAM_FILES_2))
+                dir2 = WINDOWS_PROGRAM_FILES_1.resolve(WINDOWS_PROGRAM_FILES_2.relativize(homesDir));
+            if (dir2 != null && Files.isDirectory(dir2))
+                dirs.add(dir2);
+        }
+        return dirs;
+    }
+
+    private Path getJvmRegistry() {
+        final Path cache = getCacheDir();
+        return cache != null ? cache.resolve(JVM_REGISTRY_NAME) : null;
+    }
+
+    /*
+     * The JVM registry lists the searched directories and the Java homes found in them, each with a modification time:
+     *   root <mtime> <dir>
+     *   home <version> <mtime> <path>
+     * A directory's modification time changes when Java installations are added to or removed from it, and a Java home's is that of
+     * its release file (or, if there's none, of its java executable), which changes when it's updated in place.
+     * The registry is stale if any of these times has changed, or if different directories are to be searched.
+     */
+    // visible for testing
+    static Map<String, List<Path>> readJvmRegistry(Path registry, List<Path> dirs) {
+        if (!Files.isRegularFile(registry))
+            return null;
+        try {
+            final List<Path> roots = new ArrayList<>();
+            final Map<String, List<Path>> homes = new HashMap<>();
+            for (String line : Files.readAllLines(registry, Charset.forName("UTF-8"))) {
+                final String[] fields = line.split("\t", 4);
+                final Path path = registry.getFileSystem().getPath(fields[fields.length - 1]);
+                final long mtime;
+                if (fields[0].equals("root") && fields.length == 3) {
+                    mtime = getLastModifiedTime(path);
+                    roots.add(path);
+                } else if (fields[0].equals("home") && fields.length == 4) {
+                    mtime = getJavaHomeModifiedTime(path);
+                    multiput(homes, fields[1], asList(path));
+                } else
+                    return null;
+                if (mtime != Long.parseLong(fields[fields.length - 2])) {
+                    log(LOG_VERBOSE, "JVM registry " + registry + " is stale (" + path + " has changed)");
+                    return null;
+                }
+            }
+            if (!roots.equals(dirs))
+                return null;
+            log(LOG_DEBUG, "Using JVM registry " + registry);
             return homes;
+        } catch (IOException | RuntimeException e) {
+            log(LOG_VERBOSE, "Could not read JVM registry " + registry + ": " + e);
+            return null;
+        }
+    }
+
+    // visible for testing
+    static void writeJvmRegistry(Path registry, List<Path> dirs, Map<String, List<Path>> homes) {
+        try {
+            final List<String> lines = new ArrayList<>();
+            for (Path dir : dirs)
+                lines.add("root\t" + getLastModifiedTime(dir) + "\t" + dir);
+            for (Map.Entry<String, List<Path>> e : homes.entrySet()) {
+                for (Path home : e.getValue())
+                    lines.add("home\t" + e.getKey() + "\t" + getJavaHomeModifiedTime(home) + "\t" + home);
+            }
+            final Path tmp = Files.createTempFile(registry.getParent(), registry.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tmp, lines, Charset.forName("UTF-8"));
+                Files.move(tmp, registry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            log(LOG_VERBOSE, "Wrote JVM registry " + registry);
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not write JVM registry " + registry + ": " + e);
+        }
+    }
+
+    private static long getJavaHomeModifiedTime(Path home) throws IOException {
+        final Path release = home.resolve("release");
+        return getLastModifiedTime(Files.exists(release) ? release : getJavaExecutable0(home));
+    }
+
+    private static long getLastModifiedTime(Path p) throws IOException {
+        return Files.exists(p) ? Files.getLastModifiedTime(p).toMillis() : -1;
     }
 
     private static Map<String, List<Path>> getJavaHomes(Path dir) throws IOException {
         if (dir == null || !Files.isDirectory(dir))
             return null;
         final Map<String, List<Path>> dirs = new HashMap<>();
+        final Map<Path, List<Path>> unversioned = new LinkedHashMap<>(); // first home -> homes
         try (DirectoryStream<Path> fs = Files.newDirectoryStream(dir)) {
             for (Path f : fs) {
                 String ver;
@@ -4165,11 +6079,20 @@ public class Capsule implements Runnable, InvocationHandler {
                 if (Files.isDirectory(f) && (ver = isJavaDir(f.getFileName().toString())) != null
                     && (homes = searchJavaHomeInDir(f)) != null && homes.size() > 0) {
                     if (parseJavaVersion(ver)[3] == 0)
-                        ver = getActualJavaVersion(first(homes));
-                    multiput(dirs, ver, homes);
+                        unversioned.put(first(homes), homes);
+                    else
+                        multiput(dirs, ver, homes);
                 }
             }
         }
+        final Map<Path, String> versions = getActualJavaVersions(new ArrayList<>(unversioned.keySet()));
+        for (Map.Entry<Path, List<Path>> e : unversioned.entrySet()) {
+            final String ver = versions.get(e.getKey());
+            if (ver != null)
+                multiput(dirs, ver, e.getValue());
+            else
+                log(LOG_VERBOSE, "Could not determine the version of Java installation " + e.getKey() + " (ignoring)");
+        }
         return dirs;
     }
 
@@ -4248,16 +6171,120 @@ public class Capsule implements Runnable, InvocationHandler {
     private static final Pattern PAT_JAVA_VERSION_LINE = Pattern.compile(".*?\"(.+?)\"");
 
     private static String getActualJavaVersion(Path javaHome) {
+        final String version = getActualJavaVersions(asList(javaHome)).get(javaHome);
+        if (version == null)
+            throw new RuntimeException("Could not determine the version of Java installation " + javaHome);
+        return version;
+    }
+
+    /*
+     * Versions are read from the Java homes' release files. Homes without one are probed by running java -version: up to
+     * JAVA_VERSION_PROBE_PARALLELISM processes at a time, each killed if it doesn't complete within JAVA_VERSION_PROBE_TIMEOUT.
+     * The output of java -version is small enough not to fill the pipe, so it is only read once the process has terminated.
+     */
+    private static Map<Path, String> getActualJavaVersions(List<Path> homes) {
+        final Map<Path, String> versions = new HashMap<>();
+        final List<Path> pending = new ArrayList<>();
+        for (Path home : homes) {
+            final String version = getReleaseJavaVersion(home);
+            if (version != null)
+                versions.put(home, version);
+            else
+                pending.add(home);
+        }
+
+        final Map<Process, Object[]> running = new LinkedHashMap<>(); // process -> {home, deadline}
         try {
-            final String versionLine = first(exec(1, true, new ProcessBuilder(asList(getJavaExecutable0(javaHome).toString(), "-version"))));
-            final Matcher m = PAT_JAVA_VERSION_LINE.matcher(versionLine);
-            if (!m.matches())
-                throw new IllegalArgumentException("Could not parse version line: " + versionLine);
-            final String version = m.group(1);
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                while (running.size() < JAVA_VERSION_PROBE_PARALLELISM && !pending.isEmpty()) {
+                    final Path home = pending.remove(0);
+                    try {
+                        final ProcessBuilder pb = new ProcessBuilder(getJavaExecutable0(home).toString(), "-version").redirectErrorStream(true);
+                        running.put(pb.start(), new Object[]{home, System.nanoTime() + JAVA_VERSION_PROBE_TIMEOUT * 1_000_000});
+                    } catch (IOException e) {
+                        log(LOG_VERBOSE, "Could not run " + getJavaExecutable0(home) + ": " + e.getMessage());
+                    }
+                }
+                for (Iterator<Map.Entry<Process, Object[]>> it = running.entrySet().iterator(); it.hasNext();) {
+                    final Map.Entry<Process, Object[]> e = it.next();
+                    final Process p = e.getKey();
+                    final Path home = (Path) e.getValue()[0];
+                    if (isAlive(p)) {
+                        if (System.nanoTime() - (Long) e.getValue()[1] > 0) {
+                            log(LOG_VERBOSE, "Timed out running " + getJavaExecutable0(home) + " -version");
+                            p.destroy();
+                            it.remove();
+                        }
+                        continue;
+                    }
+                    it.remove();
+                    final String version = readJavaVersion(p);
+                    if (version != null)
+                        versions.put(home, version);
+                    else
+                        log(LOG_VERBOSE, "Could not parse the output of " + getJavaExecutable0(home) + " -version");
+                }
+                if (!running.isEmpty())
+                    Thread.sleep(5);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Process p : running.keySet())
+                p.destroy();
+        }
+        return versions;
+    }
+
+    private static String readJavaVersion(Process p) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream(), Charset.defaultCharset()))) {
+            if (p.exitValue() != 0)
+                return null;
+            for (String line; (line = reader.readLine()) != null;) {
+                final Matcher m = PAT_JAVA_VERSION_LINE.matcher(line);
+                if (m.matches()) // there may be other lines first (e.g., "Picked up JAVA_TOOL_OPTIONS")
+                    return m.group(1);
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
 
-            return version;
-        } catch (Exception e) {
-            throw rethrow(e);
+    private static String getReleaseJavaVersion(Path javaHome) {
+        final Map<String, String> release = readReleaseFile(javaHome);
+        final String version = release != null ? emptyToNull(release.get("JAVA_VERSION")) : null;
+        if (version != null)
+            log(LOG_DEBUG, "Java installation " + javaHome + ": version " + version
+                           + (release.get("IMPLEMENTOR") != null ? " by " + release.get("IMPLEMENTOR") : "") + " (from release file)");
+        return version;
+    }
+
+    /**
+     * Parses the release file of the given Java home (which lists properties such as {@code JAVA_VERSION} and {@code IMPLEMENTOR}).
+     *
+     * @return the release properties, or {@code null} if the Java home has no release file.
+     */
+    // visible for testing
+    static Map<String, String> readReleaseFile(Path javaHome) {
+        final Path release = javaHome.resolve("release");
+        if (!Files.isRegularFile(release))
+            return null;
+        try {
+            final Map<String, String> props = new HashMap<>();
+            for (String line : Files.readAllLines(release, Charset.forName("ISO-8859-1"))) {
+                final int i = line.indexOf('=');
+                if (i <= 0)
+                    continue;
+                String value = line.substring(i + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+                    value = value.substring(1, value.length() - 1);
+                props.put(line.substring(0, i).trim(), value);
+            }
+            return props;
+        } catch (IOException e) {
+            log(LOG_VERBOSE, "Could not read " + release + ": " + e.getMessage());
+            return null;
         }
     }
     //</editor-fold>
@@ -4429,7 +6456,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @return the variable's value
      */
     protected String getVarValue(String var) {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.getVarValue(var) : getVarValue0(var);
+        return (_ct = getCallTarget("getVarValue")) != null ? _ct.getVarValue(var) : getVarValue0(var);
     }
 
     private String getVarValue0(String var) {
@@ -4478,6 +6505,23 @@ public class Capsule implements Runnable, InvocationHandler {
 
     //<editor-fold defaultstate="collapsed" desc="String Utils">
     /////////// String Utils ///////////////////////////////////
+    private static String toHexString(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Parses a size in bytes, optionally followed by a K, M, or G suffix.
+     */
+    private static long parseSize(String s) {
+        s = s.trim();
+        final char unit = Character.toUpperCase(s.charAt(s.length() - 1));
+        final int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+        return Long.parseLong(shift > 0 ? s.substring(0, s.length() - 1).trim() : s) << shift;
+    }
+
     private static String toString(Object o) {
         if (o == null)
             return null;
@@ -4545,6 +6589,16 @@ public class Capsule implements Runnable, InvocationHandler {
         return s.substring(0, i);
     }
 
+    private static String getAfter(String s, char separator, int n) {
+        int i = -1;
+        for (int k = 0; k < n; k++) {
+            i = s.indexOf(separator, i + 1);
+            if (i < 0)
+                return null;
+        }
+        return s.substring(i + 1);
+    }
+
     private static String getAfter(String s, char separator) {
         final int i = s.indexOf(separator);
         if (i < 0)
@@ -5075,13 +7129,13 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
-    private static boolean isAlive(Process p) {
+    static boolean isAlive(Process p) {
         // return p.isAlive() // JDK8
         try {
             p.exitValue();
-            return true;
-        } catch (IllegalThreadStateException e) {
             return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
         }
     }
 
@@ -5192,7 +7246,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * Chooses and returns the capsules log level.
      */
     protected int chooseLogLevel() {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.chooseLogLevel() : chooseLogLevel0();
+        return (_ct = getCallTarget("chooseLogLevel")) != null ? _ct.chooseLogLevel() : chooseLogLevel0();
     }
 
     private int chooseLogLevel0() {
@@ -5294,7 +7348,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * Called when an unhandled exception is thrown, to display error information to the user before shutting down.
      */
     protected void onError(Throwable t) {
-        if ((_ct = getCallTarget(Capsule.class)) != null)
+        if ((_ct = getCallTarget("onError")) != null)
             _ct.onError(t);
         else
             onError0(t);
@@ -5513,6 +7567,16 @@ public class Capsule implements Runnable, InvocationHandler {
             final JMXConnector connect = JMXConnectorFactory.connect(url);
             final MBeanServerConnection mbsc = connect.getMBeanServerConnection();
             log(LOG_VERBOSE, "JMX Connection successful");
+            oc.jmxCacheTTL = getJMXCacheTTL();
+            oc.jmxAsync = systemPropertyEmptyOrTrue(PROP_JMX_ASYNC);
+            oc.jmxConnectTime = System.nanoTime();
+            try {
+                // drop cached entries of unregistered MBeans
+                mbsc.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        (NotificationListener) Proxy.newProxyInstance(MY_CLASSLOADER, new Class<?>[]{NotificationListener.class}, this), null, null);
+            } catch (Exception e) {
+                log(LOG_VERBOSE, "Could not listen to MBean unregistration: " + e.getMessage());
+            }
             oc.jmxConnection = mbsc;
             return mbsc;
         } catch (Exception e) {
@@ -5542,11 +7606,64 @@ public class Capsule implements Runnable, InvocationHandler {
         }
     }
 
-    private Object invokeMBeanServer(Method method, Object[] args) throws ReflectiveOperationException {
+    private Object invokeMBeanServer(Method method, Object[] args) throws Exception {
         final MBeanServerConnection conn = lifecycleStage >= STAGE_LAUNCH ? getMBeanServerConnection() : null;
-        final MBeanServerConnection target = conn != null ? conn : origMBeanServer;
-        final Method m;
-        if ((m = getMethod(target.getClass(), method)) != null)
+        if (conn == null)
+            return invokeMBeanServer(origMBeanServer, method, args);
+
+        final long start = System.nanoTime();
+        try {
+            return invokeRemoteMBeanServer(conn, method, args);
+        } finally {
+            final long nanos = System.nanoTime() - start;
+            oc.jmxStats.incrementAndGet(JMX_CALLS);
+            oc.jmxStats.addAndGet(JMX_NANOS, nanos);
+            for (long max; (max = oc.jmxStats.get(JMX_MAX_NANOS)) < nanos && !oc.jmxStats.compareAndSet(JMX_MAX_NANOS, max, nanos);)
+                ;
+        }
+    }
+
+    private Object invokeRemoteMBeanServer(MBeanServerConnection conn, Method method, Object[] args) throws Exception {
+        final long ttl = oc.jmxCacheTTL;
+        switch (method.getName()) {
+            case "getMBeanInfo":
+                return getMBeanInfo(conn, (ObjectName) args[0], ttl);
+            case "getAttribute":
+                if (ttl > 0)
+                    return getAttribute(conn, (ObjectName) args[0], (String) args[1], ttl);
+                break;
+            case "getAttributes":
+                if (ttl > 0)
+                    return getAttributes(conn, (ObjectName) args[0], (String[]) args[1], ttl);
+                break;
+            case "setAttribute":
+            case "setAttributes":
+            case "invoke":
+            case "unregisterMBean":
+                oc.jmxStats.incrementAndGet(JMX_REQUESTS);
+                try {
+                    return invokeMBeanServer(conn, method, args);
+                } finally { // after the call, so that values read while it was in progress aren't cached
+                    invalidateJMXCache((ObjectName) args[0], method.getName().equals("unregisterMBean"));
+                }
+        }
+        oc.jmxStats.incrementAndGet(JMX_REQUESTS);
+        return invokeMBeanServer(conn, method, args);
+    }
+
+    private void invalidateJMXCache(ObjectName name, boolean info) {
+        synchronized (oc.jmxGenerations) {
+            final Long generation = oc.jmxGenerations.get(name);
+            oc.jmxGenerations.put(name, generation != null ? generation + 1 : 1);
+        }
+        oc.jmxAttributes.remove(name);
+        if (info)
+            oc.jmxInfo.remove(name);
+    }
+
+    private static Object invokeMBeanServer(MBeanServerConnection target, Method method, Object[] args) throws ReflectiveOperationException {
+        final Method m = method.getDeclaringClass().isInstance(target) ? method : getMBeanServerConnectionMethod(method);
+        if (m != null)
             return m.invoke(target, args);
         else if (method.getName().startsWith("getClassLoader"))
             return MY_CLASSLOADER;
@@ -5554,6 +7671,137 @@ public class Capsule implements Runnable, InvocationHandler {
             throw new UnsupportedOperationException();
     }
 
+    private static Method getMBeanServerConnectionMethod(Method method) {
+        Object m = MBEAN_CONNECTION_METHODS.get(method);
+        if (m == null) {
+            m = getMethod(MBeanServerConnection.class, method);
+            MBEAN_CONNECTION_METHODS.put(method, m != null ? m : Boolean.FALSE);
+        }
+        return m instanceof Method ? (Method) m : null;
+    }
+
+    private MBeanInfo getMBeanInfo(MBeanServerConnection conn, ObjectName name, long ttl) throws JMException, IOException {
+        final Object[] cached = oc.jmxInfo.get(name);
+        if (cached != null && (Long) cached[0] > System.currentTimeMillis()) {
+            oc.jmxStats.incrementAndGet(JMX_CACHE_HITS);
+            return (MBeanInfo) cached[1];
+        }
+        oc.jmxStats.incrementAndGet(JMX_REQUESTS);
+        final MBeanInfo info = conn.getMBeanInfo(name);
+        final boolean immutable = info.getDescriptor() != null && "true".equalsIgnoreCase(String.valueOf(info.getDescriptor().getFieldValue("immutableInfo")));
+        if (immutable || ttl > 0)
+            oc.jmxInfo.put(name, new Object[]{immutable ? Long.MAX_VALUE : System.currentTimeMillis() + ttl, info});
+        return info;
+    }
+
+    private Object getAttribute(MBeanServerConnection conn, ObjectName name, String attribute, long ttl) throws JMException, IOException {
+        final Map<String, Object> values = getAttributes(conn, name, ttl);
+        if (values.containsKey(attribute))
+            return values.get(attribute);
+        oc.jmxStats.incrementAndGet(JMX_REQUESTS);
+        return conn.getAttribute(name, attribute); // not returned by the bulk read; let the MBean server report why
+    }
+
+    private AttributeList getAttributes(MBeanServerConnection conn, ObjectName name, String[] attributes, long ttl) throws JMException, IOException {
+        final Map<String, Object> values = getAttributes(conn, name, ttl);
+        if (!values.keySet().containsAll(Arrays.asList(attributes))) {
+            oc.jmxStats.incrementAndGet(JMX_REQUESTS);
+            return conn.getAttributes(name, attributes);
+        }
+        final AttributeList list = new AttributeList();
+        for (String a : attributes)
+            list.add(new Attribute(a, values.get(a)));
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getAttributes(MBeanServerConnection conn, ObjectName name, long ttl) throws JMException, IOException {
+        final Object[] cached = oc.jmxAttributes.get(name);
+        if (cached != null && ((Long) cached[0] > System.currentTimeMillis() || oc.jmxAsync)) {
+            oc.jmxStats.incrementAndGet(JMX_CACHE_HITS);
+            if ((Long) cached[0] <= System.currentTimeMillis())
+                refreshAttributesLater(name);
+            return (Map<String, Object>) cached[1];
+        }
+        return fetchAttributes(conn, name, ttl);
+    }
+
+    /*
+     * Reads all of the MBean's readable attributes in a single request.
+     * The values are only cached if the MBean's cached attributes haven't been invalidated since the request was made (otherwise they may be stale).
+     */
+    private Map<String, Object> fetchAttributes(MBeanServerConnection conn, ObjectName name, long ttl) throws JMException, IOException {
+        final Long generation = oc.jmxGenerations.get(name);
+        final List<String> readable = new ArrayList<>();
+        for (MBeanAttributeInfo a : getMBeanInfo(conn, name, ttl).getAttributes()) {
+            if (a.isReadable())
+                readable.add(a.getName());
+        }
+        oc.jmxStats.incrementAndGet(JMX_REQUESTS);
+        final Map<String, Object> values = new HashMap<>();
+        for (Attribute a : conn.getAttributes(name, readable.toArray(new String[readable.size()])).asList())
+            values.put(a.getName(), a.getValue());
+        final Object[] entry = new Object[]{System.currentTimeMillis() + ttl, values};
+        if (Objects.equals(generation, oc.jmxGenerations.get(name))) {
+            oc.jmxAttributes.put(name, entry);
+            if (!Objects.equals(generation, oc.jmxGenerations.get(name))) // invalidated while being cached
+                oc.jmxAttributes.remove(name, entry);
+        }
+        return values;
+    }
+
+    private void refreshAttributesLater(ObjectName name) {
+        if (!oc.jmxRefreshPending.add(name))
+            return;
+        synchronized (oc.jmxRefreshQueue) {
+            if (!threads.containsKey("capsule-jmx-refresh"))
+                startThread("capsule-jmx-refresh", "refreshAttributes");
+        }
+        oc.jmxRefreshQueue.add(name);
+    }
+
+    private void refreshAttributes() {
+        try {
+            for (;;) {
+                final ObjectName name = oc.jmxRefreshQueue.take();
+                try {
+                    fetchAttributes(oc.jmxConnection, name, oc.jmxCacheTTL);
+                } catch (Exception e) {
+                    oc.jmxAttributes.remove(name);
+                    log(LOG_VERBOSE, "Refreshing attributes of " + name + " failed: " + e);
+                } finally {
+                    oc.jmxRefreshPending.remove(name);
+                }
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void handleMBeanNotification(Notification n) {
+        if (n instanceof MBeanServerNotification && MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(n.getType())) {
+            invalidateJMXCache(((MBeanServerNotification) n).getMBeanName(), true);
+        }
+    }
+
+    private static long getJMXCacheTTL() {
+        final String ttl = emptyToNull(getProperty(PROP_JMX_CACHE_TTL));
+        try {
+            return ttl != null ? Math.max(0, Long.parseLong(ttl)) : 0;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for " + PROP_JMX_CACHE_TTL + ": " + ttl);
+        }
+    }
+
+    private void logJMXStats() {
+        final long calls = oc.jmxStats.get(JMX_CALLS);
+        if (calls == 0)
+            return;
+        final double secs = Math.max(1, System.nanoTime() - oc.jmxConnectTime) / 1e9;
+        log(LOG_VERBOSE, "JMX proxy: " + calls + " calls (" + String.format("%.1f", calls / secs) + "/s), "
+                + oc.jmxStats.get(JMX_REQUESTS) + " requests to the application, " + oc.jmxStats.get(JMX_CACHE_HITS) + " cache hits; latency: "
+                + oc.jmxStats.get(JMX_NANOS) / calls / 1000 + "us avg, " + oc.jmxStats.get(JMX_MAX_NANOS) / 1000 + "us max");
+    }
+
     private void overridePlatformMBeanServer() {
         try {
             MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
@@ -5584,7 +7832,10 @@ public class Capsule implements Runnable, InvocationHandler {
             final Object res;
             if (MBeanServerConnection.class.equals(method.getDeclaringClass()) || MBeanServer.class.equals(method.getDeclaringClass()))
                 res = invokeMBeanServer(method, args);
-            else
+            else if (NotificationListener.class.equals(method.getDeclaringClass())) {
+                handleMBeanNotification((Notification) args[0]);
+                res = null;
+            } else
                 throw new UnsupportedOperationException();
             if (isLogging(LOG_DEBUG))
                 log(LOG_DEBUG, "Invoke " + method + " with args: " + Arrays.toString(args) + " => " + res);
@@ -5672,7 +7923,7 @@ public class Capsule implements Runnable, InvocationHandler {
      * @param parent the
      */
     protected Capsule loadTargetCapsule(ClassLoader parent, Path jarFile) {
-        return (_ct = getCallTarget(Capsule.class)) != null ? _ct.loadTargetCapsule(parent, jarFile) : loadTargetCapsule0(parent, jarFile);
+        return (_ct = getCallTarget("loadTargetCapsule")) != null ? _ct.loadTargetCapsule(parent, jarFile) : loadTargetCapsule0(parent, jarFile);
     }
 
     private Capsule loadTargetCapsule0(ClassLoader parent, Path jar) {
@@ -5805,6 +8056,7 @@ public class Capsule implements Runnable, InvocationHandler {
             final SecurityManager security = System.getSecurityManager();
             if (security != null && !target.getClass().getProtectionDomain().implies(PERM_UNSAFE_OVERRIDE)) {
                 log(LOG_DEBUG, "Unsafe target " + target + " skipped");
+                target.superCall = null; // the target won't be called, so it mustn't take its next direct call for a super call
                 target = null;
             }
         }
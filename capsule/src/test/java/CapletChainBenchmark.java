@@ -0,0 +1,134 @@
+/*
+ * Capsule
+ * Copyright (c) 2015, Parallel Universe Software Co. All rights reserved.
+ *
+ * This program and the accompanying materials are licensed under the terms
+ * of the Eclipse Public License v1.0, available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+import co.paralleluniverse.capsule.Jar;
+import co.paralleluniverse.capsule.test.CapsuleTestUtils;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures the per-call cost of dispatching a capsule hook through a chain of 5 caplets.
+ * Run with {@code java -cp <test classpath> CapletChainBenchmark [iterations]}.
+ */
+public class CapletChainBenchmark {
+    static final String[] CAPLETS = {
+        ChainCaplet1.class.getName(), ChainCaplet2.class.getName(), ChainCaplet3.class.getName(), ChainCaplet4.class.getName(), ChainCaplet5.class.getName()};
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        try (FileSystem fs = Jimfs.newFileSystem(Configuration.unix())) {
+            CapsuleTestUtils.setCacheDir(fs.getPath("/cache"));
+            final Capsule capsule = newChain(fs.getPath("capsule.jar"));
+
+            for (int i = 0; i < 3; i++) {
+                System.out.println("caplet chain (5): " + nsPerCall(capsule, iterations) + " ns/call");
+                System.out.println("stack capture:    " + stackCaptureNs(iterations) + " ns/call");
+            }
+        }
+    }
+
+    static Capsule newChain(Path jarPath) {
+        return newChain(jarPath, "TestCapsule");
+    }
+
+    static Capsule newChain(Path jarPath, String mainClass) {
+        final Jar jar = new Jar()
+                .setAttribute("Manifest-Version", "1.0")
+                .setAttribute("Main-Class", mainClass)
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .setListAttribute("Caplets", Arrays.asList(CAPLETS));
+        return (Capsule) CapsuleTestUtils.newCapsule(jar, jarPath);
+    }
+
+    static long nsPerCall(Capsule capsule, int iterations) {
+        int x = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            x += capsule.getVarValue("CAPSULE_APP").length();
+        final long ns = (System.nanoTime() - start) / iterations;
+        if (x == 0)
+            throw new AssertionError();
+        return ns;
+    }
+
+    // the cost the stack-walking dispatch paid at the chain head on every call
+    static long stackCaptureNs(int iterations) {
+        int x = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            x += new Throwable().getStackTrace().length;
+        final long ns = (System.nanoTime() - start) / iterations;
+        if (x == 0)
+            throw new AssertionError();
+        return ns;
+    }
+}
+
+// declares a private helper with the same name as a hook, which must not be mistaken for overriding it
+class ChainHead extends TestCapsule {
+    public ChainHead(Path jarFile) {
+        super(jarFile);
+    }
+
+    public ChainHead(Capsule pred) {
+        super(pred);
+    }
+
+    private String getVarValue(int n) {
+        return Integer.toString(n);
+    }
+}
+
+abstract class ChainCaplet extends Capsule {
+    private final String tag = getClass().getSimpleName().substring("ChainCaplet".length());
+
+    protected ChainCaplet(Capsule pred) {
+        super(pred);
+    }
+
+    @Override
+    protected String getVarValue(String var) {
+        final String value = super.getVarValue(var);
+        return "CAPSULE_APP".equals(var) ? value + tag : value;
+    }
+}
+
+class ChainCaplet1 extends ChainCaplet {
+    public ChainCaplet1(Capsule pred) {
+        super(pred);
+    }
+}
+
+class ChainCaplet2 extends ChainCaplet {
+    public ChainCaplet2(Capsule pred) {
+        super(pred);
+    }
+}
+
+class ChainCaplet3 extends ChainCaplet {
+    public ChainCaplet3(Capsule pred) {
+        super(pred);
+    }
+}
+
+class ChainCaplet4 extends ChainCaplet {
+    public ChainCaplet4(Capsule pred) {
+        super(pred);
+    }
+}
+
+class ChainCaplet5 extends ChainCaplet {
+    public ChainCaplet5(Capsule pred) {
+        super(pred);
+    }
+}
@@ -13,17 +13,34 @@ import co.paralleluniverse.capsule.test.CapsuleTestUtils.StringPrintStream;
 import static co.paralleluniverse.capsule.test.CapsuleTestUtils.*;
 
 import co.paralleluniverse.common.ZipFS;
+import com.google.common.io.ByteStreams;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.io.InputStream;
+import java.nio.channels.FileLock;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -34,7 +51,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.remote.JMXServiceURL;
 import org.junit.After;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -52,7 +77,7 @@ public class CapsuleTest {
      *
      * All the tests in this test suite use an in-memory file system, and don't write to the disk at all.
      */
-    private final FileSystem fs = Jimfs.newFileSystem(Configuration.unix());
+    private final FileSystem fs = Jimfs.newFileSystem(Configuration.unix().toBuilder().setAttributeViews("basic", "owner", "posix", "unix").build()); // "unix" for link counts
     private final Path cache = fs.getPath("/cache");
     private final Path tmp = fs.getPath("/tmp");
     private static final ClassLoader MY_CLASSLOADER = Capsule.class.getClassLoader();
@@ -153,6 +178,679 @@ public class CapsuleTest {
         assertTrue(!Files.isDirectory(appCache));
     }
 
+    @Test
+    public void testCacheFreshness() throws Exception {
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        Path capsuleJar = absolutePath("capsule.jar");
+        Path appCache = cache.resolve("apps").resolve("com.acme.Foo");
+
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .addEntry("foo.txt", Jar.toInputStream("hello", UTF_8))
+                .write(capsuleJar);
+        final FileTime mtime = Files.getLastModifiedTime(capsuleJar);
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+        assertEquals("hello", new String(Files.readAllBytes(appCache.resolve("foo.txt")), UTF_8));
+
+        // same size and modification time, different content
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .addEntry("foo.txt", Jar.toInputStream("world", UTF_8))
+                .write(capsuleJar);
+        Files.setLastModifiedTime(capsuleJar, mtime);
+        clearCaches();
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+        assertEquals("world", new String(Files.readAllBytes(appCache.resolve("foo.txt")), UTF_8));
+
+        props.setProperty("capsule.cache.freshness", "mtime");
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .addEntry("foo.txt", Jar.toInputStream("howdy", UTF_8))
+                .write(capsuleJar);
+        Files.setLastModifiedTime(capsuleJar, mtime);
+        clearCaches();
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+        assertEquals("world", new String(Files.readAllBytes(appCache.resolve("foo.txt")), UTF_8));
+    }
+
+    @Test
+    public void testIncrementalExtract() throws Exception {
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        props.setProperty("capsule.cache.incremental", "true");
+        Path capsuleJar = absolutePath("capsule.jar");
+        Path appCache = cache.resolve("apps").resolve("com.acme.Foo");
+
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .addEntry("a.txt", Jar.toInputStream("a", UTF_8))
+                .addEntry("b.txt", Jar.toInputStream("b", UTF_8))
+                .addEntry("x/c.txt", Jar.toInputStream("c", UTF_8))
+                .write(capsuleJar);
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+
+        final FileTime past = FileTime.fromMillis(1000);
+        Files.setLastModifiedTime(appCache.resolve("a.txt"), past);
+        Files.setLastModifiedTime(appCache.resolve("b.txt"), past);
+
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .addEntry("a.txt", Jar.toInputStream("a", UTF_8))
+                .addEntry("b.txt", Jar.toInputStream("bb", UTF_8))
+                .addEntry("d.txt", Jar.toInputStream("d", UTF_8))
+                .write(capsuleJar);
+        clearCaches();
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+
+        assertEquals(past, Files.getLastModifiedTime(appCache.resolve("a.txt"))); // untouched
+        assertEquals("bb", new String(Files.readAllBytes(appCache.resolve("b.txt")), UTF_8));
+        assertEquals("d", new String(Files.readAllBytes(appCache.resolve("d.txt")), UTF_8));
+        assertTrue(!Files.exists(appCache.resolve("x")));
+        assertTrue(Files.isRegularFile(appCache.resolve(".extracted")));
+    }
+
+    @Test
+    public void testParallelExtract() throws Exception {
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        props.setProperty("capsule.extract.parallelism", "4");
+        Path capsuleJar = absolutePath("capsule.jar");
+        Path appCache = cache.resolve("apps").resolve("com.acme.Foo");
+
+        Jar jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream());
+        for (int i = 0; i < 50; i++)
+            jar.addEntry("d" + (i % 5) + "/f" + i + ".txt", Jar.toInputStream(repeat("x" + i, i * 100), UTF_8));
+        jar.write(capsuleJar);
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+
+        for (int i = 0; i < 50; i++)
+            assertEquals(repeat("x" + i, i * 100), new String(Files.readAllBytes(appCache.resolve("d" + (i % 5)).resolve("f" + i + ".txt")), UTF_8));
+        assertTrue(Files.isRegularFile(appCache.resolve("foo.jar")));
+        assertTrue(Files.isRegularFile(appCache.resolve(".extracted")));
+    }
+
+    @Test
+    public void testAppCachePublish() throws Exception {
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        Path capsuleJar = absolutePath("capsule.jar");
+        Path apps = cache.resolve("apps");
+        Path appCache = apps.resolve("com.acme.Foo");
+
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .addEntry("a.txt", Jar.toInputStream("a", UTF_8))
+                .write(capsuleJar);
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+
+        assertTrue(Files.isSymbolicLink(appCache));
+        final Path first = apps.resolve(Files.readSymbolicLink(appCache));
+        assertEquals("a", new String(Files.readAllBytes(appCache.resolve("a.txt")), UTF_8));
+
+        Files.createDirectory(apps.resolve(".com.acme.Foo~123")); // left by an interrupted extraction
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .addEntry("a.txt", Jar.toInputStream("aa", UTF_8))
+                .write(capsuleJar);
+        clearCaches();
+        Capsule.newCapsule(MY_CLASSLOADER, capsuleJar).prepareForLaunch(cmdLine, args);
+
+        final Path second = apps.resolve(Files.readSymbolicLink(appCache));
+        assertTrue(!second.equals(first));
+        assertEquals("aa", new String(Files.readAllBytes(appCache.resolve("a.txt")), UTF_8));
+        assertTrue(!Files.exists(first));
+        assertTrue(!Files.exists(apps.resolve(".com.acme.Foo~123")));
+        assertTrue(!Files.exists(appCache.resolve(".lock")));
+    }
+
+    @Test
+    public void testSharedStore() throws Exception {
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        props.setProperty("capsule.cache.shared", "true");
+        Path apps = cache.resolve("apps");
+
+        for (String app : list("com.acme.Foo", "com.acme.Bar")) {
+            newCapsuleJar()
+                    .setAttribute("Application-Class", app)
+                    .addEntry("lib/common.jar", Jar.toInputStream("common", UTF_8))
+                    .addEntry(app + ".jar", Jar.toInputStream(app, UTF_8))
+                    .write(absolutePath(app + ".jar"));
+            Capsule.newCapsule(MY_CLASSLOADER, absolutePath(app + ".jar")).prepareForLaunch(cmdLine, args);
+        }
+
+        Path foo = apps.resolve("com.acme.Foo").resolve("lib").resolve("common.jar");
+        Path bar = apps.resolve("com.acme.Bar").resolve("lib").resolve("common.jar");
+        assertEquals("common", new String(Files.readAllBytes(foo), UTF_8));
+        assertTrue(Files.isSameFile(foo, bar));
+        assertEquals("com.acme.Bar", new String(Files.readAllBytes(apps.resolve("com.acme.Bar").resolve("com.acme.Bar.jar")), UTF_8));
+
+        int stored = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(cache.resolve("store"))) {
+            for (Path d : ds) {
+                try (DirectoryStream<Path> ds1 = Files.newDirectoryStream(d)) {
+                    for (Path f : ds1)
+                        stored++;
+                }
+            }
+        }
+        assertEquals(3, stored);
+
+        // prune after the Foo app cache is gone
+        Path store = cache.resolve("store");
+        Path fooJar = apps.resolve("com.acme.Foo").resolve("com.acme.Foo.jar");
+        Path fooStored = null;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(store)) {
+            for (Path d : ds) {
+                try (DirectoryStream<Path> ds1 = Files.newDirectoryStream(d)) {
+                    for (Path f : ds1) {
+                        if (Files.isSameFile(f, fooJar))
+                            fooStored = f;
+                    }
+                }
+            }
+        }
+        Path freshTmp = Files.createFile(fooStored.resolveSibling("fresh.tmp"));
+        Path staleTmp = Files.createFile(fooStored.resolveSibling("stale.tmp"));
+        Files.setLastModifiedTime(staleTmp, FileTime.fromMillis(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+        Files.delete(fooJar);
+
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, absolutePath("com.acme.Foo.jar"));
+        Reflect.on(capsule).call("pruneSharedStore");
+        assertTrue(!Files.exists(fooStored));
+        assertTrue(Files.exists(freshTmp)); // may still be written by another extraction
+        assertTrue(!Files.exists(staleTmp));
+        assertEquals("common", new String(Files.readAllBytes(bar), UTF_8));
+
+        // store files are read-only, and one modified anyway isn't linked again
+        assertTrue(!Files.getPosixFilePermissions(bar).contains(PosixFilePermission.OWNER_WRITE));
+        Files.write(bar, "modified".getBytes(UTF_8)); // Jimfs doesn't enforce permissions
+        newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Baz")
+                .addEntry("lib/common.jar", Jar.toInputStream("common", UTF_8))
+                .addEntry("com.acme.Baz.jar", Jar.toInputStream("com.acme.Baz", UTF_8))
+                .write(absolutePath("com.acme.Baz.jar"));
+        Capsule.newCapsule(MY_CLASSLOADER, absolutePath("com.acme.Baz.jar")).prepareForLaunch(cmdLine, args);
+        Path baz = apps.resolve("com.acme.Baz").resolve("lib").resolve("common.jar");
+        assertEquals("common", new String(Files.readAllBytes(baz), UTF_8));
+        assertTrue(!Files.isSameFile(baz, bar));
+        assertTrue(!Files.getPosixFilePermissions(baz).contains(PosixFilePermission.OWNER_WRITE));
+    }
+
+    @Test
+    public void testCacheQuota() throws Exception {
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        Path apps = cache.resolve("apps");
+
+        long time = 1000;
+        for (String app : list("com.acme.Foo", "com.acme.Bar", "com.acme.Baz")) {
+            if (app.equals("com.acme.Baz"))
+                props.setProperty("capsule.cache.quota", "25K");
+            newCapsuleJar()
+                    .setAttribute("Application-Class", app)
+                    .addEntry("foo.jar", Jar.toInputStream(repeat("x", 10000), UTF_8))
+                    .write(absolutePath(app + ".jar"));
+            Capsule.newCapsule(MY_CLASSLOADER, absolutePath(app + ".jar")).prepareForLaunch(cmdLine, args);
+            if (Files.exists(apps.resolve(app)))
+                Files.setLastModifiedTime(apps.resolve(app), FileTime.fromMillis(time += 1000));
+        }
+
+        assertTrue(!Files.exists(apps.resolve("com.acme.Foo"))); // least recently used
+        assertTrue(Files.isDirectory(apps.resolve("com.acme.Bar")));
+        assertTrue(Files.isDirectory(apps.resolve("com.acme.Baz")));
+
+        props.setProperty("capsule.cache.report", "");
+        Class<?> capsuleClass = loadCapsule(newCapsuleJar().setAttribute("Application-Class", "com.acme.Foo"));
+        setProperties(capsuleClass, props);
+        StringPrintStream out = setSTDOUT(capsuleClass, new StringPrintStream());
+        assert_().that(runActions(newCapsule(capsuleClass), null)).isTrue();
+        String res = out.toString();
+        assert_().that(res).contains("com.acme.Bar");
+        assert_().that(res).contains("com.acme.Baz");
+        assert_().that(res).doesNotContain("com.acme.Foo");
+        assertTrue(res.indexOf("com.acme.Bar") < res.indexOf("com.acme.Baz"));
+
+        props.remove("capsule.cache.report");
+        props.remove("capsule.cache.quota");
+        props.setProperty("capsule.cache.prune", "");
+        capsuleClass = loadCapsule(newCapsuleJar().setAttribute("Application-Class", "com.acme.Foo"));
+        setProperties(capsuleClass, props);
+        setSTDOUT(capsuleClass, new StringPrintStream());
+        assert_().that(runActions(newCapsule(capsuleClass), null)).isTrue();
+        assertTrue(!Files.exists(apps.resolve("com.acme.Bar")));
+        assertTrue(!Files.exists(apps.resolve("com.acme.Baz")));
+    }
+
+    @Test
+    public void testCacheQuotaSharedStore() throws Exception {
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        props.setProperty("capsule.cache.shared", "true");
+        Path apps = cache.resolve("apps");
+
+        long time = 1000;
+        for (String app : list("com.acme.Foo", "com.acme.Bar", "com.acme.Baz")) {
+            if (app.equals("com.acme.Baz"))
+                props.setProperty("capsule.cache.quota", "15K"); // the shared JAR is counted once
+            newCapsuleJar()
+                    .setAttribute("Application-Class", app)
+                    .addEntry("lib/common.jar", Jar.toInputStream(repeat("x", 10000), UTF_8))
+                    .addEntry(app + ".jar", Jar.toInputStream(app, UTF_8))
+                    .write(absolutePath(app + ".jar"));
+            Capsule.newCapsule(MY_CLASSLOADER, absolutePath(app + ".jar")).prepareForLaunch(cmdLine, args);
+            Files.setLastModifiedTime(apps.resolve(app), FileTime.fromMillis(time += 1000));
+        }
+
+        for (String app : list("com.acme.Foo", "com.acme.Bar", "com.acme.Baz"))
+            assertTrue(Files.isDirectory(apps.resolve(app)));
+
+        Map<Object, long[]> files = new HashMap<>();
+        Map<Path, long[]> caches = Reflect.on(Capsule.newCapsule(MY_CLASSLOADER, absolutePath("com.acme.Foo.jar"))).call("getAppCaches", files, null).get();
+        long total = 0;
+        for (long[] file : files.values())
+            total += file[0];
+        assertTrue(total < 15 * 1024);
+        for (long[] c : caches.values())
+            assertTrue(c[1] < 1000); // the shared JAR isn't counted for any single app
+    }
+
+    @Test
+    public void testTrampolineCacheGrace() throws Exception {
+        props.setProperty("capsule.trampoline", "true");
+
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .write(absolutePath("capsule.jar"));
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        ProcessBuilder pb = capsule.prepareForLaunch(cmdLine, args);
+        assertEquals(0, (int) Reflect.on(capsule).call("launch0", pb).<Integer>get()); // prints the command line
+
+        // the capsule's JVM exits, releasing its use-lock, while the application runs
+        FileLock useLock = Reflect.on(capsule).field("appCacheUseLock").get();
+        useLock.release();
+        useLock.acquiredBy().close();
+
+        Path appCache = cache.resolve("apps").resolve("com.acme.Foo");
+        Path marker = appCache.resolveSibling(".com.acme.Foo.detached");
+        assertTrue(Files.exists(marker));
+        assertEquals(false, Reflect.on(Capsule.class).call("evictAppCache", appCache).get());
+        assertTrue(Files.isDirectory(appCache));
+
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis() - 25 * 60 * 60 * 1000L));
+        assertEquals(true, Reflect.on(Capsule.class).call("evictAppCache", appCache).get());
+        assertTrue(!Files.exists(appCache));
+        assertTrue(!Files.exists(marker));
+    }
+
+    @Test
+    public void testJvmRegistry() throws Exception {
+        Path jvms = path("/jvms");
+        Path jdk7 = jvms.resolve("jdk1.7.0_80");
+        Path jdk8 = jvms.resolve("jdk1.8.0_60");
+        for (Path home : list(jdk7, jdk8)) {
+            Files.createDirectories(home.resolve("bin"));
+            Files.createFile(home.resolve("bin").resolve("java"));
+        }
+        Files.write(jdk8.resolve("release"), "JAVA_VERSION=\"1.8.0_60\"\n".getBytes(UTF_8));
+
+        Path registry = cache.resolve("jvms");
+        Map<String, List<Path>> homes = map("1.7.0_80", list(jdk7), "1.8.0_60", list(jdk8));
+        Files.createDirectories(cache);
+        Reflect.on(Capsule.class).call("writeJvmRegistry", registry, list(jvms), homes);
+        assertEquals(homes, Capsule.readJvmRegistry(registry, list(jvms)));
+
+        assertEquals(null, Capsule.readJvmRegistry(registry, list(jvms, path("/other"))));
+
+        Files.setLastModifiedTime(jdk8.resolve("release"), FileTime.fromMillis(1000)); // updated in place
+        assertEquals(null, Capsule.readJvmRegistry(registry, list(jvms)));
+
+        Reflect.on(Capsule.class).call("writeJvmRegistry", registry, list(jvms), homes);
+        assertEquals(homes, Capsule.readJvmRegistry(registry, list(jvms)));
+        Files.setLastModifiedTime(jvms, FileTime.fromMillis(1000)); // installation added or removed
+        assertEquals(null, Capsule.readJvmRegistry(registry, list(jvms)));
+    }
+
+    @Test
+    public void testJavaVersionDetection() throws Exception {
+        Path jdk = path("/jvms/jdk-custom");
+        Files.createDirectories(jdk.resolve("bin"));
+        Files.write(jdk.resolve("release"), list("JAVA_VERSION=\"1.8.0_60\"", "IMPLEMENTOR=\"Acme Corp.\"", "OS_NAME=Linux"), UTF_8);
+        assertEquals(map("JAVA_VERSION", "1.8.0_60", "IMPLEMENTOR", "Acme Corp.", "OS_NAME", "Linux"), Capsule.readReleaseFile(jdk));
+        assertEquals(null, Capsule.readReleaseFile(path("/jvms/none")));
+
+        Path current = Paths.get(System.getProperty("java.home"));
+        Path broken = path("/jvms/broken"); // no java executable
+        Map<Path, String> versions = Reflect.on(Capsule.class).call("getActualJavaVersions", list(jdk, broken, current)).get();
+        assertEquals("1.8.0_60", versions.get(jdk));
+        assertEquals(System.getProperty("java.version"), versions.get(current)); // from the release file or by running java -version
+        assertTrue(!versions.containsKey(broken));
+    }
+
+    @Test
+    public void testCommProtocol() throws Exception {
+        final int exit = 1, startJmx = 2, jmxUrl = 3;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // pipelined: several messages written before any is read
+        Reflect.on(Capsule.class).call("writeMessage", out, startJmx, 1, null);
+        out.writeInt(4); // an unknown message, skipped by the reader
+        out.writeInt(99);
+        out.writeInt(2);
+        out.writeInt(12345);
+        Reflect.on(Capsule.class).call("writeMessage", out, jmxUrl, 1, new JMXServiceURL("service:jmx:rmi://localhost:1234"));
+        Reflect.on(Capsule.class).call("writeMessage", out, exit, 3, 7);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(list(startJmx, 1, null), list(Reflect.on(Capsule.class).call("readMessage", in).<Object[]>get()));
+        assertEquals(null, Reflect.on(Capsule.class).call("readMessage", in).get());
+        assertEquals(list(jmxUrl, 1, new JMXServiceURL("service:jmx:rmi://localhost:1234")), list(Reflect.on(Capsule.class).call("readMessage", in).<Object[]>get()));
+        assertEquals(list(exit, 3, 7), list(Reflect.on(Capsule.class).call("readMessage", in).<Object[]>get()));
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testCommUnixFallback() throws Exception {
+        props.setProperty("capsule.comm.unix", "true");
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .write(absolutePath("capsule.jar"));
+
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        Reflect.on(capsule)
+                .set("javaHome", Paths.get(System.getProperty("java.home")))
+                .set("javaVersion", "11.0.2"); // no Unix domain sockets before Java 16
+        List<String> args = list();
+        List<String> cmdLine = list();
+        ProcessBuilder pb = capsule.prepareForLaunch(cmdLine, args);
+        try {
+            assertEquals(null, getProperty(pb, "capsule.socket"));
+            assertTrue(getProperty(pb, "capsule.port") != null);
+            assertTrue(Reflect.on(capsule).field("socket").get() instanceof ServerSocket);
+        } finally {
+            Reflect.on(capsule).call("closeComm");
+        }
+    }
+
+    @Test
+    public void testCommUnixSocket() throws Exception {
+        assumeTrue(Capsule.compareVersions(System.getProperty("java.specification.version"), "16") >= 0);
+
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .write(absolutePath("capsule.jar"));
+        final Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        final Capsule agent = Capsule.newCapsule(MY_CLASSLOADER, jar);
+
+        Path dir = Files.createTempDirectory("capsule-test"); // Unix domain sockets must be on the default file system
+        Path socket = dir.resolve("comm.sock");
+        SocketAddress address = Reflect.on(Capsule.class).call("unixSocketAddress", socket).get();
+        ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+        ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        final SocketChannel client = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        try {
+            server.bind(address);
+            client.connect(address);
+            final Throwable[] error = new Throwable[1];
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Reflect.on(agent).set("socket", client).call("openChannelStreams", client);
+                    } catch (Throwable e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            t.start();
+            Reflect.on(capsule).set("socket", Reflect.on(capsule).call("acceptChannel", server).get());
+            t.join();
+            if (error[0] != null)
+                throw new AssertionError(error[0]);
+
+            // the channels are blocking again after the handshake
+            final int exit = 1;
+            Reflect.on(agent).call("send0", exit, 5, 7);
+            DataInputStream in = Reflect.on(capsule).field("socketInput").get();
+            assertEquals(list(exit, 5, 7), list(Reflect.on(Capsule.class).call("readMessage", in).<Object[]>get()));
+        } finally {
+            Reflect.on(agent).call("closeComm");
+            Reflect.on(capsule).call("closeComm");
+            Files.deleteIfExists(socket);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testJMXProxyCache() throws Exception {
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .write(absolutePath("capsule.jar"));
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        Reflect.on(capsule).set("lifecycleStage", 2).set("jmxConnection", ManagementFactory.getPlatformMBeanServer()).set("jmxCacheTTL", 60_000L);
+        MBeanServer proxy = (MBeanServer) Proxy.newProxyInstance(MY_CLASSLOADER, new Class<?>[]{MBeanServer.class}, capsule);
+        AtomicLongArray stats = Reflect.on(capsule).field("jmxStats").get();
+
+        ObjectName runtime = new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
+        Object uptime = proxy.getAttribute(runtime, "Uptime");
+        assertEquals(2, stats.get(1)); // MBean info + all attributes
+        assertEquals(uptime, proxy.getAttribute(runtime, "Uptime"));
+        assertEquals(System.getProperty("java.vm.name"), proxy.getAttribute(runtime, "VmName"));
+        assertEquals(uptime, ((Attribute) proxy.getAttributes(runtime, new String[]{"Uptime"}).get(0)).getValue());
+        assertEquals(2, stats.get(1));
+        assertEquals(4, stats.get(0));
+
+        ObjectName memory = new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME);
+        boolean verbose = (Boolean) proxy.getAttribute(memory, "Verbose");
+        try {
+            proxy.setAttribute(memory, new Attribute("Verbose", !verbose)); // invalidates the MBean's attributes
+            assertEquals(!verbose, proxy.getAttribute(memory, "Verbose"));
+        } finally {
+            proxy.setAttribute(memory, new Attribute("Verbose", verbose));
+        }
+        assertEquals(verbose, proxy.getAttribute(memory, "Verbose"));
+
+        Reflect.on(capsule).set("jmxCacheTTL", 0L);
+        proxy.getAttribute(runtime, "Uptime");
+        proxy.getAttribute(runtime, "Uptime");
+        assertEquals(10, stats.get(1));
+
+        Reflect.on(capsule).set("jmxCacheTTL", 1L).set("jmxAsync", true);
+        Reflect.on(capsule).field("jmxAttributes").<Map<?, ?>>get().clear();
+        uptime = proxy.getAttribute(runtime, "Uptime");
+        Thread.sleep(20);
+        assertEquals(uptime, proxy.getAttribute(runtime, "Uptime")); // expired, but returned while refreshed in the background
+        for (int i = 0; i < 100 && uptime.equals(proxy.getAttribute(runtime, "Uptime")); i++)
+            Thread.sleep(20);
+        assertTrue(!uptime.equals(proxy.getAttribute(runtime, "Uptime")));
+
+        // values fetched while the MBean's cached attributes are invalidated aren't cached
+        Reflect.on(capsule).set("jmxCacheTTL", 60_000L).set("jmxAsync", false);
+        final ObjectName racy = new ObjectName("capsule.test:type=Racy");
+        final Capsule c = capsule;
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new RacyMBean() {
+            @Override
+            public int getValue() {
+                Reflect.on(c).call("invalidateJMXCache", racy, false); // as if setAttribute completed while the values were read
+                return 1;
+            }
+        }, RacyMBean.class), racy);
+        try {
+            assertEquals(1, proxy.getAttribute(racy, "Value"));
+            assertTrue(!Reflect.on(capsule).field("jmxAttributes").<Map<?, ?>>get().containsKey(racy));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(racy);
+        }
+    }
+
+    public interface RacyMBean {
+        int getValue();
+    }
+
+    @Test
+    public void testLaunchScript() throws Exception {
+        assumeTrue(!Capsule.isWindows());
+
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .write(absolutePath("capsule.jar"));
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        ProcessBuilder pb = new ProcessBuilder("/usr/bin/java", "-Dcapsule.exec", "-cp", "a b.jar", "com.acme.Foo", "it's");
+        pb.environment().put("CAPSULE_TEST_VAR", "$x");
+
+        Path script = Reflect.on(capsule).call("writeLaunchScript", pb).get();
+        assertEquals(cache, script.getParent()); // the capsule isn't extracted
+        assertTrue(script.getFileName().toString().startsWith("."));
+        List<String> lines = Files.readAllLines(script, UTF_8);
+        assertEquals("rm -f \"$0\"", lines.get(1));
+        assertTrue(lines.contains("export CAPSULE_TEST_VAR='$x'"));
+        assertEquals("exec '/usr/bin/java' '-cp' 'a b.jar' 'com.acme.Foo' 'it'\"'\"'s'", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    public void testExecCacheGrace() throws Exception {
+        assumeTrue(!Capsule.isWindows());
+
+        List<String> args = list();
+        List<String> cmdLine = list();
+
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .addEntry("foo.jar", emptyInputStream())
+                .write(absolutePath("capsule.jar"));
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        ProcessBuilder pb = capsule.prepareForLaunch(cmdLine, args);
+        Reflect.on(capsule).call("writeLaunchScript", pb);
+
+        // the capsule's JVM exits, releasing its use-lock, while the application runs
+        FileLock useLock = Reflect.on(capsule).field("appCacheUseLock").get();
+        useLock.release();
+        useLock.acquiredBy().close();
+
+        Path appCache = cache.resolve("apps").resolve("com.acme.Foo");
+        Path marker = appCache.resolveSibling(".com.acme.Foo.detached");
+        assertTrue(Files.exists(marker));
+        assertEquals(false, Reflect.on(Capsule.class).call("evictAppCache", appCache).get());
+        assertTrue(Files.isDirectory(appCache));
+
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis() - 25 * 60 * 60 * 1000L));
+        assertEquals(true, Reflect.on(Capsule.class).call("evictAppCache", appCache).get());
+        assertTrue(!Files.exists(appCache));
+        assertTrue(!Files.exists(marker));
+    }
+
+    @Test
+    public void testLaunchPlanCache() throws Exception {
+        Jar jar = newCapsuleJar()
+                .setAttribute("Capsule-Agent", "false") // the agent's comm port changes on every launch
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .setAttribute("Environment-Variables", "CAPSULE_TEST_VAR=foo")
+                .addEntry("foo.jar", emptyInputStream());
+        Path jarPath = jar.write(absolutePath("capsule.jar"));
+
+        List<String> args = list("hi");
+        List<String> cmdLine = list();
+
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jarPath);
+        ProcessBuilder pb = capsule.prepareForLaunch(cmdLine, args);
+        String key = Reflect.on(capsule).call("getLaunchPlanKey", list(), list("hi")).get();
+        Reflect.on(capsule).call("writeLaunchPlan", key, pb);
+        assertTrue(Files.exists(cache.resolve("apps").resolve("com.acme.Foo").resolve(".launch-" + key)));
+
+        capsule = Capsule.newCapsule(MY_CLASSLOADER, jarPath);
+        assertEquals(key, Reflect.on(capsule).call("getLaunchPlanKey", list(), list("hi")).get());
+        ProcessBuilder cached = Reflect.on(capsule).call("readLaunchPlan", key).get();
+        assertEquals(pb.command(), cached.command());
+        assertEquals(pb.directory(), cached.directory());
+        assertEquals(pb.environment(), cached.environment());
+        assertEquals("foo", cached.environment().get("CAPSULE_TEST_VAR"));
+
+        assertTrue(!key.equals(Reflect.on(capsule).call("getLaunchPlanKey", list(), list("bye")).get()));
+        props.setProperty("capsule.jvm.args", "-Xmx100m");
+        assertTrue(!key.equals(Reflect.on(capsule).call("getLaunchPlanKey", list(), list("hi")).get()));
+        props.remove("capsule.jvm.args");
+
+        newCapsuleJar()
+                .setAttribute("Capsule-Agent", "false")
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .setAttribute("Application-Version", "2.0")
+                .addEntry("foo.jar", emptyInputStream())
+                .write(jarPath);
+        clearCaches();
+        capsule = Capsule.newCapsule(MY_CLASSLOADER, jarPath);
+        assertTrue(!key.equals(Reflect.on(capsule).call("getLaunchPlanKey", list(), list("hi")).get()));
+    }
+
+    @Test
+    public void testClassDataSharing() throws Exception {
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .setAttribute("Class-Data-Sharing", "true")
+                .addEntry("foo.jar", emptyInputStream())
+                .write(absolutePath("capsule.jar"));
+        Path appCache = cache.resolve("apps").resolve("com.acme.Foo");
+
+        ProcessBuilder pb = prepareForLaunchWithJava(jar, "17.0.1");
+        Path archive = path(getOption(pb, "-XX:ArchiveClassesAtExit", '='));
+        assertEquals(appCache, archive.getParent());
+        assertTrue(archive.getFileName().toString().matches("\\.cds-[0-9a-f]{64}\\.jsa"));
+        assertEquals(null, getOption(pb, "-XX:SharedArchiveFile", '='));
+
+        Path stale = appCache.resolve(".cds-0123abcd.jsa"); // made for another JVM or classpath
+        Files.createFile(stale);
+        pb = prepareForLaunchWithJava(jar, "17.0.1");
+        assertEquals(archive.toString(), getOption(pb, "-XX:ArchiveClassesAtExit", '='));
+        assertTrue(!Files.exists(stale)); // replaced by the new archive
+
+        Files.createFile(archive);
+        Files.createFile(stale);
+        pb = prepareForLaunchWithJava(jar, "17.0.1");
+        assertEquals(archive.toString(), getOption(pb, "-XX:SharedArchiveFile", '='));
+        assertEquals(null, getOption(pb, "-XX:ArchiveClassesAtExit", '='));
+        assertTrue(Files.exists(stale)); // no new archive is created
+
+        pb = prepareForLaunchWithJava(jar, "21");
+        assertEquals(archive.toString(), getOption(pb, "-XX:SharedArchiveFile", '='));
+        assertTrue(getJvmArgs(pb).contains("-XX:+AutoCreateSharedArchive"));
+
+        pb = prepareForLaunchWithJava(jar, "11.0.2");
+        assertEquals(null, getOption(pb, "-XX:SharedArchiveFile", '='));
+        assertEquals(null, getOption(pb, "-XX:ArchiveClassesAtExit", '='));
+
+        props.setProperty("capsule.jvm.args", "-Xshare:off");
+        pb = prepareForLaunchWithJava(jar, "17.0.1");
+        assertEquals(null, getOption(pb, "-XX:SharedArchiveFile", '='));
+    }
+
+    private ProcessBuilder prepareForLaunchWithJava(Path jar, String javaVersion) {
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        Reflect.on(capsule)
+                .set("javaHome", Paths.get(System.getProperty("java.home")))
+                .set("javaVersion", javaVersion);
+        return capsule.prepareForLaunch(Collections.<String>emptyList(), Collections.<String>emptyList());
+    }
+
     @Test
     public void testJDKClassPath() throws Exception {
         assumeTrue(!isCI());
@@ -646,6 +1344,70 @@ public class CapsuleTest {
         assertTrue(getJvmArgs(pb).contains("-Xbar:120"));
     }
 
+    @Test
+    public void testAttributeCache() throws Exception {
+        Jar jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .setAttribute("JVM-Args", "-Xmx100 -Xms10")
+                .setAttribute("ModeX", "JVM-Args", "-Xmx200");
+
+        props.setProperty("capsule.mode", "ModeX");
+        Capsule capsule = newCapsule(jar);
+
+        final List<String> jvmArgs = capsule.getAttribute(Capsule.ATTR_JVM_ARGS);
+        assertEquals(list("-Xmx100", "-Xms10", "-Xmx200"), jvmArgs);
+        jvmArgs.clear();
+        assertEquals(list("-Xmx100", "-Xms10", "-Xmx200"), capsule.getAttribute(Capsule.ATTR_JVM_ARGS));
+
+        // mode change
+        Reflect.on(capsule).set("mode", null);
+        assertEquals(list("-Xmx100", "-Xms10"), capsule.getAttribute(Capsule.ATTR_JVM_ARGS));
+        Reflect.on(capsule).set("mode", "ModeX");
+        assertEquals(list("-Xmx100", "-Xms10", "-Xmx200"), capsule.getAttribute(Capsule.ATTR_JVM_ARGS));
+    }
+
+    private static final Map.Entry<String, String> ATTR_TEST_UNCACHED = Capsule.UNCACHED(Capsule.ATTRIBUTE("Test-Uncached-Value", Capsule.T_STRING(), null, true, "test"));
+    private static final Map.Entry<String, String> ATTR_TEST_CACHED = Capsule.ATTRIBUTE("Test-Cached-Value", Capsule.T_STRING(), null, true, "test");
+
+    @Test
+    public void testAttributeCacheInvalidation() throws Exception {
+        Jar jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .setAttribute("Capsule-Agent", "true")
+                .setAttribute("System-Properties", "home=$JAVA_HOME")
+                .setAttribute("Test-Uncached-Value", "foo")
+                .setAttribute("Test-Cached-Value", "foo");
+
+        props.setProperty("capsule.java.home", "/my/1.8.0.jdk/home");
+        Capsule capsule = newCapsule(jar);
+
+        // choosing a Java home
+        capsule.getJavaHome();
+        assertEquals(path("/my/1.8.0.jdk/home").toString(), capsule.getAttribute(Capsule.ATTR_SYSTEM_PROPERTIES).get("home"));
+        props.setProperty("capsule.java.home", "/other/1.8.0.jdk/home"); // same Java version
+        Reflect.on(capsule).set("javaHome", null);
+        capsule.getJavaHome();
+        assertEquals(path("/other/1.8.0.jdk/home").toString(), capsule.getAttribute(Capsule.ATTR_SYSTEM_PROPERTIES).get("home"));
+
+        // comm address change
+        assertEquals(null, capsule.getAttribute(Capsule.ATTR_SYSTEM_PROPERTIES).get("capsule.port"));
+        Reflect.on(capsule).call("prepareServer");
+        try {
+            assertEquals(String.valueOf(Reflect.on(capsule).<Integer>get("port")), capsule.getAttribute(Capsule.ATTR_SYSTEM_PROPERTIES).get("capsule.port"));
+        } finally {
+            Reflect.on(capsule).call("closeComm");
+        }
+
+        // UNCACHED attributes are read every time
+        assertEquals("foo", capsule.getAttribute(ATTR_TEST_UNCACHED));
+        assertEquals("foo", capsule.getAttribute(ATTR_TEST_CACHED));
+        Manifest manifest = Reflect.on(capsule).get("manifest");
+        manifest.getMainAttributes().putValue("Test-Uncached-Value", "bar");
+        manifest.getMainAttributes().putValue("Test-Cached-Value", "bar");
+        assertEquals("bar", capsule.getAttribute(ATTR_TEST_UNCACHED));
+        assertEquals("foo", capsule.getAttribute(ATTR_TEST_CACHED));
+    }
+
     @Test
     public void testAgents() throws Exception {
         Jar jar = newCapsuleJar()
@@ -891,6 +1653,47 @@ public class CapsuleTest {
                 appCache.resolve("lib").resolve("b.jar"));
     }
 
+    @Test
+    public void testCapletChainDispatch() throws Exception {
+        Capsule capsule = CapletChainBenchmark.newChain(path("capsule.jar"));
+
+        final List<String> caplets = new ArrayList<>();
+        for (Class<?> c : capsule.getCaplets())
+            caplets.add(c.getName());
+        assertEquals("TestCapsule", caplets.get(0));
+        assertEquals(list(CapletChainBenchmark.CAPLETS), caplets.subList(1, caplets.size()));
+
+        for (int i = 0; i < 3; i++)
+            assertEquals("com.acme.Foo12345", capsule.getVarValue("CAPSULE_APP"));
+        assertEquals("com.acme.Foo", capsule.getAppId());
+
+        capsule = CapletChainBenchmark.newChain(path("capsule2.jar"), "ChainHead");
+        assertEquals("ChainHead", capsule.getCaplets().get(0).getName());
+        assertEquals("com.acme.Foo12345", capsule.getVarValue("CAPSULE_APP"));
+    }
+
+    @Test
+    public void testUnsafeCallTarget() throws Exception {
+        Path jar = newCapsuleJar()
+                .setAttribute("Application-Class", "com.acme.Foo")
+                .write(absolutePath("capsule.jar"));
+        Capsule capsule = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        Capsule target = Capsule.newCapsule(MY_CLASSLOADER, jar);
+        Reflect.on(target).set("superCall", "launch"); // as marked by getCallTarget("launch")
+
+        System.setSecurityManager(new SecurityManager() {
+            @Override
+            public void checkPermission(java.security.Permission perm) {
+            }
+        });
+        try {
+            assertEquals(null, Reflect.on(capsule).call("unsafe", target).get());
+        } finally {
+            System.setSecurityManager(null);
+        }
+        assertEquals(null, Reflect.on(target).field("superCall").get());
+    }
+
     @Test
     public void testEmbeddedCaplet() throws Exception {
         Jar bar = newCapsuleJar()
@@ -1227,7 +2030,8 @@ public class CapsuleTest {
                 .addEntry("b.txt", emptyInputStream())
                 .addEntry("lib/a.jar", emptyInputStream())
                 .addEntry("lib/b.class", emptyInputStream())
-                .addEntry("META-INF/x.txt", emptyInputStream());
+                .addEntry("META-INF/x.txt", emptyInputStream())
+                .addEntry("c.txt", new ByteArrayInputStream("hello hello hello".getBytes(UTF_8)));
 
         Class<?> capsuleClass = loadCapsule(wrapper);
 //        setProperties(capsuleClass, props);
@@ -1260,6 +2064,20 @@ public class CapsuleTest {
         assertTrue(Files.isRegularFile(jar.getPath("lib/a.jar")));
         assertTrue(Files.isRegularFile(jar.getPath("lib/b.class")));
         assertTrue(Files.isRegularFile(jar.getPath("META-INF/x.txt")));
+        assertEquals("hello hello hello", new String(Files.readAllBytes(jar.getPath("c.txt")), UTF_8));
+
+        // entries are readable sequentially, too, with the manifest first
+        try (JarInputStream jis = new JarInputStream(Files.newInputStream(path("out.jar")))) {
+            assertEquals("TestCapsule", jis.getManifest().getMainAttributes().getValue("Main-Class"));
+            List<String> names = new ArrayList<>();
+            for (JarEntry entry; (entry = jis.getNextJarEntry()) != null;) {
+                names.add(entry.getName());
+                if (entry.getName().equals("c.txt"))
+                    assertEquals("hello hello hello", new String(ByteStreams.toByteArray(jis), UTF_8));
+            }
+            assert_().that(names).has().allOf("Capsule.class", "MyCapsule.class", "c.txt", "lib/a.jar");
+            assertEquals(new HashSet<>(names).size(), names.size());
+        }
     }
     //</editor-fold>
 
@@ -1348,6 +2166,20 @@ public class CapsuleTest {
         assertTrue(!Files.exists(path("a")));
     }
 
+    @Test
+    public void testIsAlive() throws Exception {
+        assumeTrue(!Capsule.isWindows());
+
+        Process p = new ProcessBuilder("cat").start(); // runs until its input is closed
+        try {
+            assertTrue(Capsule.isAlive(p));
+        } finally {
+            p.getOutputStream().close();
+        }
+        p.waitFor();
+        assertTrue(!Capsule.isAlive(p));
+    }
+
     @Test
     public void testGlobToRegex() throws Exception {
         assertEquals(true, "abc/def".matches(Capsule.globToRegex("abc/def")));
@@ -1551,6 +2383,31 @@ public class CapsuleTest {
 
     }
 
+    @Test
+    public void testJarIndex() throws Exception {
+        Path jarPath = path("index.jar");
+        new Jar()
+                .setAttribute("Manifest-Version", "1.0")
+                .setAttribute("Main-Class", "com.acme.Foo")
+                .setReallyExecutable(true)
+                .addEntry("a.txt", Jar.toInputStream("hello", UTF_8))
+                .addEntry("lib/b.txt", Jar.toInputStream("world", UTF_8))
+                .write(jarPath);
+
+        final List<String> entries = new ArrayList<>();
+        for (String entry : Reflect.on(Capsule.class).call("cachedEntries", jarPath).<Iterable<String>>get())
+            entries.add(entry);
+        assertEquals(list("META-INF/MANIFEST.MF", "a.txt", "lib/b.txt"), entries);
+        assertEquals("com.acme.Foo", Reflect.on(Capsule.class).call("getMainClass", jarPath).get());
+        try (InputStream is = Capsule.getEntryInputStream(jarPath, "lib/b.txt")) {
+            assertEquals("world", new String(ByteStreams.toByteArray(is), UTF_8));
+        }
+        try (InputStream is = Capsule.getEntryInputStream(jarPath, "a.txt")) {
+            assertEquals("hello", new String(ByteStreams.toByteArray(is), UTF_8));
+        }
+        assertNull(Capsule.getEntryInputStream(jarPath, "c.txt"));
+    }
+
     @Test
     @SuppressWarnings("deprecation")
     public void testPathingJar() throws Exception {
@@ -1745,6 +2602,13 @@ public class CapsuleTest {
         return s.substring(i + 1);
     }
 
+    private static String repeat(String s, int times) {
+        final StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+
     private static <T extends Comparable<? super T>> List<T> sort(List<T> list) {
         final List<T> c = new ArrayList<>(list);
         Collections.<T>sort(c);